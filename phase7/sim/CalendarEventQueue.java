@@ -0,0 +1,309 @@
+// This software has been placed in the public domain by its author
+
+// A calendar queue (Brown, 1988): events are hashed by time into a ring of
+// buckets, each covering a fixed slice of time, so adding and removing an
+// event is amortised O(1) when event times are evenly spread. Each bucket
+// is a list sorted by time and then by ID, so events leave in the same
+// order as Event.compareTo(). Events are stored in parallel arrays and the
+// lists are linked by index, so there are no per-event objects.
+
+package sim;
+import java.util.Arrays;
+
+class CalendarEventQueue implements EventQueue
+{
+	private final static int MIN_BUCKETS = 16;
+	private final static int INITIAL_CAPACITY = 1024;
+	private final static int SAMPLE_SIZE = 25; // Events sampled on resize
+	private final static int NONE = -1; // Null link
+	
+	// Event storage
+	private int size = 0;
+	private long[] times = new long[INITIAL_CAPACITY];
+	private long[] ids = new long[INITIAL_CAPACITY];
+	private int[] lanes = new int[INITIAL_CAPACITY];
+	private int[] codes = new int[INITIAL_CAPACITY];
+	private EventTarget[] targets = new EventTarget[INITIAL_CAPACITY];
+	private Object[] data = new Object[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int[] next = new int[INITIAL_CAPACITY]; // Bucket list links
+	private int free = NONE; // Head of the list of unused slots
+	private int used = 0; // Slots that have ever been used
+	
+	// The calendar
+	private int[] heads, tails; // First and last event in each bucket
+	private int mask; // Number of buckets minus one (a power of two)
+	private long width = Event.TICKS_PER_SECOND; // Ticks per bucket
+	private long current = 0; // Virtual bucket (time / width) being read
+	private int head = NONE; // Cached first event, or NONE
+	
+	public CalendarEventQueue()
+	{
+		makeBuckets (MIN_BUCKETS);
+	}
+	
+	public void add (long time, long id, int lane, EventTarget target,
+				int code, Object d, long value)
+	{
+		int e = allocate();
+		times[e] = time;
+		ids[e] = id;
+		lanes[e] = lane;
+		targets[e] = target;
+		codes[e] = code;
+		data[e] = d;
+		values[e] = value;
+		insert (e);
+		size++;
+		long vb = virtualBucket (time);
+		if (vb < current) current = vb;
+		// An event earlier than the cached head becomes the head
+		if (head != NONE && before (e, head)) {
+			head = e;
+			current = vb;
+		}
+		if (size > 2 * (mask + 1)) resize ((mask + 1) * 2);
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public long headTime()
+	{
+		return times[head()];
+	}
+	
+	public long headId()
+	{
+		return ids[head()];
+	}
+	
+	public int headLane()
+	{
+		return lanes[head()];
+	}
+	
+	public EventTarget headTarget()
+	{
+		return targets[head()];
+	}
+	
+	public int headCode()
+	{
+		return codes[head()];
+	}
+	
+	public Object headData()
+	{
+		return data[head()];
+	}
+	
+	public long headValue()
+	{
+		return values[head()];
+	}
+	
+	public void pop()
+	{
+		int e = head();
+		unlinkHead (bucket (times[e]));
+		release (e);
+		size--;
+		head = NONE;
+		if (size < (mask + 1) / 2 && mask + 1 > MIN_BUCKETS)
+			resize ((mask + 1) / 2);
+	}
+	
+	public int purge (LongHashSet purged)
+	{
+		int removed = 0;
+		for (int b = 0; b <= mask; b++) {
+			int prev = NONE, e = heads[b];
+			while (e != NONE) {
+				int following = next[e];
+				if (purged.contains (ids[e])) {
+					if (prev == NONE) heads[b] = following;
+					else next[prev] = following;
+					release (e);
+					removed++;
+				}
+				else prev = e;
+				e = following;
+			}
+			tails[b] = prev;
+		}
+		size -= removed;
+		head = NONE;
+		return removed;
+	}
+	
+	public void clear()
+	{
+		size = 0;
+		used = 0;
+		free = NONE;
+		head = NONE;
+		current = 0;
+		Arrays.fill (targets, null);
+		Arrays.fill (data, null);
+		makeBuckets (MIN_BUCKETS);
+	}
+	
+	// Must be consistent with Event.compareTo()
+	private boolean before (int a, int b)
+	{
+		return times[a] < times[b]
+			|| (times[a] == times[b] && ids[a] < ids[b]);
+	}
+	
+	private long virtualBucket (long time)
+	{
+		return time / width;
+	}
+	
+	private int bucket (long time)
+	{
+		return (int) (virtualBucket (time) & mask);
+	}
+	
+	// Find the first event, starting from the current virtual bucket
+	private int head()
+	{
+		if (head != NONE) return head;
+		// Look for an event in this year's slice of each bucket
+		for (int i = 0; i <= mask; i++) {
+			int first = heads[(int) ((current + i) & mask)];
+			if (first != NONE
+			&& virtualBucket (times[first]) == current + i) {
+				current += i;
+				head = first;
+				return head;
+			}
+		}
+		// The calendar is sparse - search every bucket directly
+		for (int b = 0; b <= mask; b++) {
+			int first = heads[b];
+			if (first != NONE && (head == NONE || before (first, head)))
+				head = first;
+		}
+		current = virtualBucket (times[head]);
+		return head;
+	}
+	
+	// Insert an event into its bucket, keeping the bucket sorted
+	private void insert (int e)
+	{
+		int b = bucket (times[e]);
+		int tail = tails[b];
+		// Usually the new event belongs at the end of the bucket
+		if (tail == NONE || before (tail, e)) {
+			next[e] = NONE;
+			if (tail == NONE) heads[b] = e;
+			else next[tail] = e;
+			tails[b] = e;
+			return;
+		}
+		int prev = NONE, cur = heads[b];
+		while (before (cur, e)) {
+			prev = cur;
+			cur = next[cur];
+		}
+		next[e] = cur;
+		if (prev == NONE) heads[b] = e;
+		else next[prev] = e;
+	}
+	
+	private void unlinkHead (int b)
+	{
+		int e = heads[b];
+		heads[b] = next[e];
+		if (heads[b] == NONE) tails[b] = NONE;
+	}
+	
+	private int allocate()
+	{
+		if (free != NONE) {
+			int e = free;
+			free = next[e];
+			return e;
+		}
+		if (used == times.length) grow();
+		return used++;
+	}
+	
+	private void release (int e)
+	{
+		targets[e] = null;
+		data[e] = null;
+		next[e] = free;
+		free = e;
+	}
+	
+	private void grow()
+	{
+		int capacity = times.length * 2;
+		times = Arrays.copyOf (times, capacity);
+		ids = Arrays.copyOf (ids, capacity);
+		lanes = Arrays.copyOf (lanes, capacity);
+		codes = Arrays.copyOf (codes, capacity);
+		targets = Arrays.copyOf (targets, capacity);
+		data = Arrays.copyOf (data, capacity);
+		values = Arrays.copyOf (values, capacity);
+		next = Arrays.copyOf (next, capacity);
+	}
+	
+	private void makeBuckets (int buckets)
+	{
+		heads = new int[buckets];
+		tails = new int[buckets];
+		Arrays.fill (heads, NONE);
+		Arrays.fill (tails, NONE);
+		mask = buckets - 1;
+	}
+	
+	// Change the number of buckets and choose a new bucket width
+	private void resize (int buckets)
+	{
+		// Take the first few events off the calendar in order
+		int[] sample = new int[Math.min (SAMPLE_SIZE, size)];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = head();
+			unlinkHead (bucket (times[sample[i]]));
+			head = NONE;
+		}
+		// Collect the rest of the events, then rehash everything
+		int[] rest = new int[size - sample.length];
+		int n = 0;
+		for (int b = 0; b <= mask; b++)
+			for (int e = heads[b]; e != NONE; e = next[e])
+				rest[n++] = e;
+		width = sampleWidth (sample);
+		makeBuckets (buckets);
+		for (int e : sample) insert (e);
+		for (int e : rest) insert (e);
+		head = NONE;
+		if (sample.length > 0) current = virtualBucket (times[sample[0]]);
+	}
+	
+	// Three times the typical gap between the sampled events, ignoring
+	// unusually large gaps
+	private long sampleWidth (int[] sample)
+	{
+		if (sample.length < 2) return width;
+		long span = times[sample[sample.length-1]] - times[sample[0]];
+		long average = span / (sample.length - 1);
+		long total = 0;
+		int gaps = 0;
+		for (int i = 1; i < sample.length; i++) {
+			long gap = times[sample[i]] - times[sample[i-1]];
+			if (gap <= 2 * average) {
+				total += gap;
+				gaps++;
+			}
+		}
+		if (total <= 0) return width; // All the events coincide
+		return Math.max (1, 3 * total / gaps);
+	}
+}
@@ -0,0 +1,66 @@
+// This software has been placed in the public domain by its author
+
+// Controlled delay (Nichols and Jacobson, RFC 8289): drop packets at the
+// head of the queue once they've been waiting longer than a target for at
+// least an interval, more and more often until the standing queue drains.
+// Bursts that drain within the interval aren't touched, and the queue
+// isn't drained below one full-sized packet.
+
+package sim;
+
+class CoDelDiscipline implements QueueDiscipline
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final long target, interval; // Ticks
+	private long firstAbove = 0; // When waiting became too long, or 0
+	private long dropNext = 0; // Time of the next drop while dropping
+	private int count = 0, lastCount = 0; // Drops in this dropping state
+	private boolean dropping = false;
+	
+	public CoDelDiscipline (long target, long interval)
+	{
+		this.target = target;
+		this.interval = interval;
+	}
+	
+	public boolean admit (int queued, long now)
+	{
+		return true;
+	}
+	
+	public boolean keep (long waited, int queued, long now)
+	{
+		boolean okToDrop = false;
+		if (waited < target || queued <= Packet.MAX_SIZE)
+			firstAbove = 0;
+		else if (firstAbove == 0) firstAbove = now + interval;
+		else if (now >= firstAbove) okToDrop = true;
+		if (dropping) {
+			if (!okToDrop) dropping = false;
+			else if (now >= dropNext) {
+				count++;
+				dropNext = controlLaw (dropNext);
+				return false;
+			}
+			return true;
+		}
+		if (!okToDrop) return true;
+		// Start dropping, picking up where the last dropping state
+		// left off if it was recent
+		dropping = true;
+		int delta = count - lastCount;
+		if (delta > 1 && now - dropNext < 16 * interval) count = delta;
+		else count = 1;
+		dropNext = controlLaw (now);
+		lastCount = count;
+		return false;
+	}
+	
+	// Drops get closer together in proportion to the square root of the
+	// number of drops so far
+	private long controlLaw (long t)
+	{
+		return t + (long) (interval / Math.sqrt (count));
+	}
+}
@@ -0,0 +1,39 @@
+// This software has been placed in the public domain by its author
+
+// Decides how much data a peer can have in flight and how fast it can send
+// it (see Peer). CongestionWindow is AIMD with slow start, as TCP does;
+// LeakyBucketController paces the same window evenly across each
+// round-trip time; and DelayController backs off as the round-trip time
+// grows, before packets are lost, as LEDBAT does.
+
+package sim;
+import java.io.Serializable;
+
+interface CongestionController extends Serializable
+{
+	// The link has been idle - return to the initial state
+	public void reset();
+	
+	// Return the number of bytes that can be sent now
+	public int available();
+	
+	// Put bytes in flight
+	public void bytesSent (int bytes);
+	
+	// Take bytes out of flight
+	public void bytesAcked (int bytes);
+	
+	// A packet was acked after the given round-trip time, in seconds,
+	// and the peer's moving average is now the other
+	public void rttSample (double rtt, double average);
+	
+	// A packet is being fast retransmitted
+	public void fastRetransmission (double now);
+	
+	// A packet is being retransmitted due to a timeout
+	public void timeout (double now);
+	
+	// Return the time at which more can be sent without any acks, or
+	// infinity if that will only be when acks arrive
+	public double nextAvailable (double now);
+}
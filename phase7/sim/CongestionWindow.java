@@ -4,8 +4,10 @@
 
 package sim;
 
-class CongestionWindow
+class CongestionWindow implements CongestionController
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	public final static int MIN_CWIND = Packet.MAX_SIZE; // Min window size
@@ -17,7 +19,7 @@ class CongestionWindow
 	private double cwind = MIN_CWIND; // Size of window in bytes
 	private int inflight = 0; // Bytes sent but not acked
 	private boolean slowStart = true; // Are we in the slow start phase?
-	private Peer peer; // The owner
+	protected final Peer peer; // The owner
 	
 	public CongestionWindow (Peer peer)
 	{
@@ -39,6 +41,12 @@ class CongestionWindow
 		return (int) cwind - inflight;
 	}
 	
+	// Return the size of the window in bytes
+	public double size()
+	{
+		return cwind;
+	}
+	
 	// Put bytes in flight
 	public void bytesSent (int bytes)
 	{
@@ -60,6 +68,9 @@ class CongestionWindow
 		}
 	}
 	
+	// The window doesn't depend on the round-trip time
+	public void rttSample (double rtt, double average) {}
+	
 	// Decrease the window when a packet is fast retransmitted
 	public void fastRetransmission (double now)
 	{
@@ -83,4 +94,10 @@ class CongestionWindow
 		if (slowStart) fastRetransmission (now); // Leave slow start
 		else reset(); // Reset the window and return to slow start
 	}
+	
+	// Only acks open the window
+	public double nextAvailable (double now)
+	{
+		return Double.POSITIVE_INFINITY;
+	}
 }
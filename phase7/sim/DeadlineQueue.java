@@ -1,38 +1,75 @@
 // This software has been placed in the public domain by its author
 
-// A queue storing outgoing messages and their coalescing deadlines
+// A queue storing outgoing messages and their coalescing deadlines. The
+// deadlines are stored here rather than in the messages because the same
+// message can be queued by several peers, and by several nodes as it's
+// forwarded.
 
 package sim;
 import sim.messages.Message;
-import java.util.LinkedList;
+import java.io.Serializable;
 
-class DeadlineQueue<MESSAGE extends Message>
+class DeadlineQueue<MESSAGE extends Message> implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public int size = 0; // Size of the queue in bytes
-	private LinkedList<MESSAGE> messages = new LinkedList<MESSAGE>();
+	private Object[] messages = new Object[16]; // Circular buffer
+	private double[] deadlines = new double[16];
+	private int head = 0, count = 0;
 	
-	public void add (MESSAGE m)
+	public void add (MESSAGE m, double deadline)
 	{
+		if (count == messages.length) grow();
+		int tail = (head + count) & (messages.length - 1);
+		messages[tail] = m;
+		deadlines[tail] = deadline;
+		count++;
 		size += m.size();
-		messages.add (m);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private MESSAGE peek()
+	{
+		return (MESSAGE) messages[head];
 	}
 	
 	public int headSize()
 	{
-		if (messages.isEmpty()) return 0;
-		else return messages.peek().size();
+		if (count == 0) return 0;
+		else return peek().size();
 	}
 	
 	public double deadline()
 	{
-		if (messages.isEmpty()) return Double.POSITIVE_INFINITY;
-		else return messages.peek().deadline;
+		if (count == 0) return Double.POSITIVE_INFINITY;
+		else return deadlines[head];
 	}
 	
 	public MESSAGE pop()
 	{
-		MESSAGE m = messages.poll();
-		if (m != null) size -= m.size();
+		if (count == 0) return null;
+		MESSAGE m = peek();
+		messages[head] = null;
+		head = (head + 1) & (messages.length - 1);
+		count--;
+		size -= m.size();
 		return m;
 	}
+	
+	// Double the capacity, unwrapping the buffer
+	private void grow()
+	{
+		int capacity = messages.length * 2;
+		Object[] m = new Object[capacity];
+		double[] d = new double[capacity];
+		for (int i = 0; i < count; i++) {
+			int j = (head + i) & (messages.length - 1);
+			m[i] = messages[j];
+			d[i] = deadlines[j];
+		}
+		messages = m;
+		deadlines = d;
+		head = 0;
+	}
 }
@@ -0,0 +1,115 @@
+// This software has been placed in the public domain by its author
+
+// Delay-based congestion control in the style of LEDBAT (RFC 6817): the
+// queueing delay is estimated as the recent round-trip time less the
+// lowest ever seen, and the window grows in proportion to how far the
+// delay is below a target and shrinks in proportion to how far it's
+// above, so the sender keeps the queues along its path short and yields
+// to senders that wait for losses. Losses halve the window, at most once
+// per round-trip time.
+//
+// LEDBAT measures one-way delays; a round-trip time also includes the
+// time to send the packet, which here can be a large part of it, so the
+// target is higher than LEDBAT's 100 ms - about two full-sized packets on
+// the slowest links.
+
+package sim;
+
+class DelayController implements CongestionController
+{
+	private final static long serialVersionUID = 1L;
+	
+	public final static boolean LOG = false;
+	
+	public final static double TARGET = 0.5; // Queueing delay, seconds
+	public final static double GAIN = 1.0; // Full-sized packets per RTT
+	public final static int SAMPLES = 4; // Recent round-trip times kept
+	
+	private double cwind = CongestionWindow.MIN_CWIND; // Bytes
+	private int inflight = 0; // Bytes sent but not acked
+	private double baseRtt = Double.POSITIVE_INFINITY; // Lowest, seconds
+	private double[] recent = new double[SAMPLES]; // Round-trip times
+	private int samples = 0; // Round-trip times seen
+	private double rtt = 5.0; // The peer's average round-trip time, secs
+	private double lastDecrease = Double.NEGATIVE_INFINITY; // Abs. time
+	private Peer peer; // The owner
+	
+	public DelayController (Peer peer)
+	{
+		this.peer = peer;
+	}
+	
+	public void reset()
+	{
+		cwind = CongestionWindow.MIN_CWIND;
+		if (LOG) peer.log ("congestion window decreased to " + cwind);
+	}
+	
+	public int available()
+	{
+		return (int) cwind - inflight;
+	}
+	
+	public void bytesSent (int bytes)
+	{
+		inflight += bytes;
+		if (LOG) peer.log (inflight + " bytes in flight");
+	}
+	
+	// Take bytes out of flight and move the window towards the target
+	public void bytesAcked (int bytes)
+	{
+		inflight -= bytes;
+		if (samples == 0) return;
+		double offTarget = (TARGET - queueingDelay()) / TARGET;
+		cwind += GAIN * offTarget * bytes * Packet.MAX_SIZE / cwind;
+		if (cwind > CongestionWindow.MAX_CWIND)
+			cwind = CongestionWindow.MAX_CWIND;
+		if (cwind < CongestionWindow.MIN_CWIND)
+			cwind = CongestionWindow.MIN_CWIND;
+		if (LOG) {
+			peer.log (inflight + " bytes in flight");
+			peer.log ("congestion window changed to " + cwind);
+		}
+	}
+	
+	public void rttSample (double rtt, double average)
+	{
+		this.rtt = average;
+		baseRtt = Math.min (baseRtt, rtt);
+		recent[samples % SAMPLES] = rtt;
+		samples++;
+		if (LOG) peer.log ("queueing delay " + queueingDelay());
+	}
+	
+	// The lowest recent round-trip time less the lowest ever, seconds
+	private double queueingDelay()
+	{
+		double current = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < Math.min (samples, SAMPLES); i++)
+			current = Math.min (current, recent[i]);
+		return current - baseRtt;
+	}
+	
+	public void fastRetransmission (double now)
+	{
+		if (now - lastDecrease < rtt) return;
+		lastDecrease = now;
+		cwind *= 0.5;
+		if (cwind < CongestionWindow.MIN_CWIND)
+			cwind = CongestionWindow.MIN_CWIND;
+		if (LOG) peer.log ("congestion window decreased to " + cwind);
+	}
+	
+	public void timeout (double now)
+	{
+		lastDecrease = now;
+		reset();
+	}
+	
+	// Only acks open the window
+	public double nextAvailable (double now)
+	{
+		return Double.POSITIVE_INFINITY;
+	}
+}
@@ -0,0 +1,20 @@
+// This software has been placed in the public domain by its author
+
+// Only drop packets that don't fit in the queue
+
+package sim;
+
+class DropTailDiscipline implements QueueDiscipline
+{
+	private final static long serialVersionUID = 1L;
+	
+	public boolean admit (int queued, long now)
+	{
+		return true;
+	}
+	
+	public boolean keep (long waited, int queued, long now)
+	{
+		return true;
+	}
+}
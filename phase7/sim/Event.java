@@ -1,97 +1,187 @@
 // This software has been placed in the public domain by its author
 
 package sim;
-import java.util.TreeSet; // Gotta love the collections framework...
+import java.util.ArrayList;
+import java.util.HashMap;
 
 public class Event implements Comparable
 {
-	// Static variables and methods for the event queue
+	// The clock counts whole ticks, so event times compare exactly and
+	// runs don't depend on floating point rounding. Times and delays in
+	// seconds are rounded to the nearest tick.
+	public final static long TICKS_PER_SECOND = 1000000000L; // Nanoseconds
+	
+	// Static methods that act on the calling thread's current simulation
 	
-	private static TreeSet<Event> queue = new TreeSet<Event>();
-	private static double now = 0.0;
-	private static int nextId = 0, currentId = -1, lastLogId = -1;
 	private static int nextCode = 0; // Unique event codes
-	public static double duration = Double.POSITIVE_INFINITY;
-	public static boolean blankLine = false; // Blank line between events?
+	// Codes depend on the order in which classes are initialised, so
+	// snapshots refer to each code by its class and position in the class
+	private static ArrayList<String> codeNames = new ArrayList<String>();
+	private static HashMap<String,Integer> codesByName
+		= new HashMap<String,Integer>();
+	private static HashMap<String,Integer> codesPerClass
+		= new HashMap<String,Integer>();
+	
+	// Convert seconds to ticks - infinity becomes Long.MAX_VALUE
+	public static long toTicks (double seconds)
+	{
+		return Math.round (seconds * TICKS_PER_SECOND);
+	}
 	
-	public static void reset()
+	public static double toSeconds (long ticks)
 	{
-		queue.clear();
-		now = 0.0;
-		nextId = 0;
-		currentId = -1;
-		lastLogId = -1;
-		duration = Double.POSITIVE_INFINITY;
+		return (double) ticks / TICKS_PER_SECOND;
 	}
 	
-	public static void schedule (EventTarget target, double delay,
+	// Return the event's ID, which can be used to cancel it
+	public static long schedule (EventTarget target, double delay,
 					int code, Object data)
 	{
-		queue.add (new Event (target, delay + now, code, data));
-	}
-	
-	public static boolean nextEvent()
-	{
-		try {
-			Event e = queue.first();
-			// Return if the simulation's alloted time has run out
-			if (e.time > duration) {
-				now = duration;
-				return false;
-			}
-			// Update the clock
-			now = e.time;
-			// Pass the packet to the target's callback method
-			currentId = e.id;
-			queue.remove (e);
-			e.target.handleEvent (e.code, e.data);
-			return true;
-		}
-		catch (java.util.NoSuchElementException x) {
-			// No more events to dispatch
-			return false;
-		}
+		return Simulation.current().schedule (target, delay, code, data);
+	}
+	
+	// Schedule an event for a target that belongs to another node - the
+	// lane is the node's lane
+	public static long schedule (int lane, EventTarget target, double delay,
+					int code, Object data)
+	{
+		return Simulation.current().schedule
+			(lane, target, delay, code, data);
+	}
+	
+	// Schedule events with primitive payloads, which aren't boxed - int
+	// payloads are widened to long, and double payloads are passed as
+	// their bits (see Double.longBitsToDouble())
+	public static long schedule (PrimitiveEventTarget target, double delay,
+					int code, long value)
+	{
+		return Simulation.current().schedule (target, delay, code, value);
+	}
+	
+	public static long schedule (PrimitiveEventTarget target, double delay,
+					int code, double value)
+	{
+		return Simulation.current().schedule (target, delay, code,
+					Double.doubleToRawLongBits (value));
 	}
 	
+	public static long schedule (int lane, PrimitiveEventTarget target,
+					double delay, int code, long value)
+	{
+		return Simulation.current().schedule
+			(lane, target, delay, code, value);
+	}
+	
+	// Schedule events with delays in ticks rather than seconds
+	public static long scheduleTicks (EventTarget target, long delay,
+					int code, Object data)
+	{
+		return Simulation.current().scheduleTicks
+			(target, delay, code, data);
+	}
+	
+	public static long scheduleTicks (int lane, EventTarget target,
+					long delay, int code, Object data)
+	{
+		return Simulation.current().scheduleTicks
+			(lane, target, delay, code, data);
+	}
+	
+	// Cancel a pending event
+	public static void cancel (long id)
+	{
+		Simulation.current().cancel (id);
+	}
+	
+	// The current time in seconds
 	public static double time()
 	{
-		return now;
+		return Simulation.current().time();
 	}
 	
-	public static int code()
+	// The current time in ticks
+	public static long ticks()
 	{
+		return Simulation.current().ticks();
+	}
+	
+	// Called by static initialisers, which may run on several threads
+	public static synchronized int code()
+	{
+		// A class is initialised by one thread, so the codes it
+		// declares are numbered in order within the class
+		String c = new Throwable().getStackTrace()[1].getClassName();
+		Integer n = codesPerClass.get (c);
+		if (n == null) n = 0;
+		codesPerClass.put (c, n + 1);
+		String name = c + "#" + n;
+		codeNames.add (name);
+		codesByName.put (name, nextCode);
 		return nextCode++;
 	}
 	
+	// The name of a code, which doesn't change from one run to the next
+	static synchronized String codeName (int code)
+	{
+		return codeNames.get (code);
+	}
+	
+	// The code with the given name, initialising its class if necessary
+	static int codeNamed (String name) throws ClassNotFoundException
+	{
+		synchronized (Event.class) {
+			Integer code = codesByName.get (name);
+			if (code != null) return code;
+		}
+		// Not holding the lock, which the class's initialiser needs
+		Class.forName (name.substring (0, name.lastIndexOf ('#')));
+		synchronized (Event.class) {
+			Integer code = codesByName.get (name);
+			if (code == null)
+				throw new ClassNotFoundException ("no code " + name);
+			return code;
+		}
+	}
+	
 	public static void log (String message)
 	{
-		// Print a blank line between events
-		if (blankLine && currentId > lastLogId) System.out.println();
-		lastLogId = currentId;
-		System.out.print (now + " " + message + "\n");
+		Simulation.current().log (message);
+	}
+	
+	// Start a structured log record - add the fields and end it (see
+	// Trace). The node, peer and search ID are -1 if not applicable.
+	public static Trace trace (int kind, int node, int peer, int id)
+	{
+		return Simulation.current().trace().begin (kind, node, peer, id);
 	}
 	
-	// Run until the duration expires or there are no more events to process
+	// Run the current simulation
 	public static void run()
 	{
-		while (nextEvent()) {}
+		Simulation.current().run();
 	}
 	
-	// Instance variables and methods for individual events
+	// Instance variables and methods for individual events, which are
+	// only used (and recycled) by TreeEventQueue
 	
-	private EventTarget target;
-	private double time;
-	private int id;
-	private int code;
-	private Object data;
+	EventTarget target;
+	long time;
+	long id;
+	int lane;
+	int code;
+	Object data;
+	long value;
 	
-	private Event (EventTarget target, double time, int code, Object data)
+	void set (EventTarget target, long time, long id, int lane,
+		int code, Object data, long value)
 	{
 		this.target = target;
 		this.time = time;
+		this.id = id;
+		this.lane = lane;
 		this.code = code;
 		this.data = data;
-		id = nextId++;
+		this.value = value;
 	}
 	
 	// Must be consistent with compareTo()
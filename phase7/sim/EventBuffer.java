@@ -0,0 +1,57 @@
+// This software has been placed in the public domain by its author
+
+// Events sent from one partition of a parallel run to another, waiting to
+// be handed over at the end of the window - stored in parallel arrays
+
+package sim;
+import java.util.Arrays;
+
+class EventBuffer
+{
+	private int size = 0;
+	private long[] times = new long[16];
+	private long[] ids = new long[16];
+	private int[] lanes = new int[16];
+	private int[] codes = new int[16];
+	private EventTarget[] targets = new EventTarget[16];
+	private Object[] data = new Object[16];
+	private long[] values = new long[16];
+	
+	public void add (long time, long id, int lane, EventTarget target,
+				int code, Object d, long value)
+	{
+		if (size == times.length) grow();
+		times[size] = time;
+		ids[size] = id;
+		lanes[size] = lane;
+		codes[size] = code;
+		targets[size] = target;
+		data[size] = d;
+		values[size] = value;
+		size++;
+	}
+	
+	// Move the events to a simulation's queue and empty the buffer
+	public void moveTo (Simulation s)
+	{
+		for (int i = 0; i < size; i++) {
+			s.enqueue (times[i], ids[i], lanes[i], targets[i],
+					codes[i], data[i], values[i]);
+			targets[i] = null;
+			data[i] = null;
+		}
+		size = 0;
+	}
+	
+	private void grow()
+	{
+		int capacity = times.length * 2;
+		times = Arrays.copyOf (times, capacity);
+		ids = Arrays.copyOf (ids, capacity);
+		lanes = Arrays.copyOf (lanes, capacity);
+		codes = Arrays.copyOf (codes, capacity);
+		targets = Arrays.copyOf (targets, capacity);
+		data = Arrays.copyOf (data, capacity);
+		values = Arrays.copyOf (values, capacity);
+	}
+}
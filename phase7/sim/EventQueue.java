@@ -0,0 +1,31 @@
+// This software has been placed in the public domain by its author
+
+// A queue of pending events, sorted by time and then by ID. Each event
+// carries an object payload and a primitive payload (see Simulation).
+
+package sim;
+
+interface EventQueue
+{
+	public void add (long time, long id, int lane, EventTarget target,
+				int code, Object data, long value);
+	
+	public int size();
+	
+	// Fields of the first event - only valid if the queue isn't empty
+	public long headTime();
+	public long headId();
+	public int headLane();
+	public EventTarget headTarget();
+	public int headCode();
+	public Object headData();
+	public long headValue();
+	
+	// Remove the first event
+	public void pop();
+	
+	// Remove the events with the given IDs, return the number removed
+	public int purge (LongHashSet ids);
+	
+	public void clear();
+}
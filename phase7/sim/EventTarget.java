@@ -1,8 +1,11 @@
 // This software has been placed in the public domain by its author
 
 package sim;
+import java.io.Serializable;
 
-public interface EventTarget
+// Targets are serializable so that pending events can be saved in a
+// snapshot (see Simulation)
+public interface EventTarget extends Serializable
 {
 	public void handleEvent (int code, Object data);
 }
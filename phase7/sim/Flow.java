@@ -0,0 +1,47 @@
+// This software has been placed in the public domain by its author
+
+// A block transfer from one node to a peer, modelled as a fluid flow rather
+// than as packets (see Flows). Blocks for the same search that are sent
+// while the flow is still transmitting join the flow, and they all arrive
+// together when it finishes.
+
+package sim;
+import sim.messages.Message;
+import java.util.ArrayList;
+import java.io.Serializable;
+
+class Flow implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	public final int id; // Search ID
+	public final Node src; // The sending node
+	public final int dest; // The receiving node's address
+	public final long latency; // Link latency in ticks
+	public final ArrayList<Message> messages = new ArrayList<Message>();
+	
+	double remaining = 0.0; // Bytes left to transmit
+	double rate = 0.0; // Bytes per second, set by Flows
+	boolean finished = false; // Transmitted, possibly still in flight
+	
+	public Flow (int id, Node src, int dest, long latency)
+	{
+		this.id = id;
+		this.src = src;
+		this.dest = dest;
+		this.latency = latency;
+	}
+	
+	// Each block would travel in a packet of its own
+	void add (Message m)
+	{
+		messages.add (m);
+		remaining += m.size() + Packet.HEADER_SIZE;
+	}
+	
+	public String toString()
+	{
+		return new String ("flow " + src.net.address + ":" + dest
+			+ ":" + id);
+	}
+}
@@ -0,0 +1,230 @@
+// This software has been placed in the public domain by its author
+
+// Block transfers modelled as fluid flows rather than packets, which cuts
+// the number of events by an order of magnitude or more: instead of every
+// block being coalesced, queued, acked and possibly retransmitted, each
+// transfer costs one event when it finishes transmitting and one when it
+// arrives. Searches and other messages still travel in packets.
+//
+// Each node's upload capacity (the lower of its interface's tx speed and
+// its bandwidth limiter's rate) and download capacity (its rx speed) is
+// shared between the flows that use it, max-min fairly. The rates only
+// change when a flow starts or finishes, so the flows' progress is brought
+// up to date and the rates recalculated then, and the next finishing time
+// follows from the rates. Bytes sent by flows are taken from the sender's
+// bandwidth limiter, so searches still wait behind transfers, but not
+// from its interface queue, and flows aren't lost or reordered.
+//
+// The flows of all nodes are linked by the shared capacities, so they
+// can't be split between the partitions of a parallel run.
+
+package sim;
+import sim.messages.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+class Flows implements EventTarget
+{
+	private final static long serialVersionUID = 1L;
+	
+	public final static boolean LOG = false;
+	
+	private final Network network;
+	private ArrayList<Flow> flows; // Flows that are still transmitting
+	private long lastUpdate = 0; // When the flows were last advanced, ticks
+	private long wakeup = -1; // Event ID of the next finish, or -1
+	private long wakeupTime = Long.MAX_VALUE; // Ticks
+	
+	// Capacity left to share out, and flows not yet given a rate, for
+	// each address while the rates are being calculated
+	private double[] txLeft = new double[16], rxLeft = new double[16];
+	private int[] txFlows = new int[16], rxFlows = new int[16];
+	
+	public Flows (Network network)
+	{
+		this.network = network;
+		flows = new ArrayList<Flow>();
+	}
+	
+	// Start a new flow carrying the given message
+	public void start (Flow f, Message m)
+	{
+		advance();
+		f.add (m);
+		flows.add (f);
+		if (LOG) trace (STARTED, f).add (f).end();
+		allocate();
+		reschedule();
+	}
+	
+	// Add a message to a flow that's still transmitting - its rate
+	// doesn't change, only when it finishes, which only matters if it
+	// was going to be the next to finish
+	public void add (Flow f, Message m)
+	{
+		long t = lastUpdate + Event.toTicks (f.remaining / f.rate);
+		f.add (m);
+		if (t == wakeupTime) reschedule();
+	}
+	
+	// Bring the flows' progress up to date, taking the bytes they've sent
+	// from the senders' bandwidth limiters
+	private void advance()
+	{
+		long now = Event.ticks();
+		double elapsed = Event.toSeconds (now - lastUpdate);
+		lastUpdate = now;
+		if (elapsed == 0.0) return;
+		for (int i = 0; i < flows.size(); i++) {
+			Flow f = flows.get (i);
+			double sent = Math.min (f.rate * elapsed, f.remaining);
+			f.remaining -= sent;
+			f.src.bandwidth.remove ((int) Math.round (sent));
+		}
+	}
+	
+	// Share the capacity of each node's interface between the flows using
+	// it by progressive filling: the interface with the smallest share
+	// per flow is the bottleneck for all its flows, which get that share,
+	// and the rest of the capacity is shared out in the same way. A flow's
+	// share of its other interface is never less than the bottleneck's,
+	// so the capacities can be updated as each flow gets its rate.
+	private void allocate()
+	{
+		for (int i = 0; i < flows.size(); i++) {
+			Flow f = flows.get (i);
+			int src = f.src.net.address;
+			if (Math.max (src, f.dest) >= txLeft.length)
+				grow (Math.max (src, f.dest) + 1);
+			double tx = f.src.net.txSpeed();
+			txLeft[src] = Math.min (tx, f.src.bandwidth.rate);
+			txFlows[src] = 0;
+			// Flows to an offline node are lost at the far end
+			NetworkInterface ni = network.get (f.dest);
+			double rx = Double.POSITIVE_INFINITY;
+			if (ni != null) rx = ni.rxSpeed();
+			rxLeft[f.dest] = rx;
+			rxFlows[f.dest] = 0;
+		}
+		for (int i = 0; i < flows.size(); i++) {
+			Flow f = flows.get (i);
+			f.rate = -1.0; // Not yet given a rate
+			txFlows[f.src.net.address]++;
+			rxFlows[f.dest]++;
+		}
+		int unallocated = flows.size();
+		while (unallocated > 0) {
+			// Find the bottleneck's share
+			double share = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < flows.size(); i++) {
+				Flow f = flows.get (i);
+				if (f.rate >= 0.0) continue;
+				share = Math.min (share, share (f));
+			}
+			// Give it to every flow limited to that share (allowing
+			// for rounding error)
+			double limit = share * (1.0 + 1e-9);
+			for (int i = 0; i < flows.size(); i++) {
+				Flow f = flows.get (i);
+				if (f.rate >= 0.0) continue;
+				if (share (f) > limit) continue;
+				int src = f.src.net.address;
+				f.rate = share;
+				txLeft[src] -= share;
+				txFlows[src]--;
+				rxLeft[f.dest] -= share;
+				rxFlows[f.dest]--;
+				unallocated--;
+			}
+		}
+	}
+	
+	// The share of the less generous of a flow's two interfaces
+	private double share (Flow f)
+	{
+		int src = f.src.net.address;
+		return Math.min (txLeft[src] / txFlows[src],
+				rxLeft[f.dest] / rxFlows[f.dest]);
+	}
+	
+	private void grow (int size)
+	{
+		size = Math.max (size, txLeft.length * 2);
+		txLeft = Arrays.copyOf (txLeft, size);
+		rxLeft = Arrays.copyOf (rxLeft, size);
+		txFlows = Arrays.copyOf (txFlows, size);
+		rxFlows = Arrays.copyOf (rxFlows, size);
+	}
+	
+	// Move the wakeup to the time the next flow finishes transmitting
+	private void reschedule()
+	{
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < flows.size(); i++) {
+			Flow f = flows.get (i);
+			long t = Event.toTicks (f.remaining / f.rate);
+			if (lastUpdate + t < next) next = lastUpdate + t;
+		}
+		if (next == wakeupTime) return;
+		Event.cancel (wakeup);
+		wakeupTime = next;
+		if (next == Long.MAX_VALUE) wakeup = -1;
+		else {
+			// At least one tick, in case rounding puts the finish a
+			// fraction of a tick in the past
+			long delay = Math.max (next - Event.ticks(), 1L);
+			wakeup = Event.scheduleTicks (0, this, delay,
+							FINISH, null);
+		}
+	}
+	
+	// Event callback - remove the flows that have finished transmitting,
+	// send them on their way and share out their capacity
+	private void finish()
+	{
+		wakeup = -1;
+		wakeupTime = Long.MAX_VALUE;
+		advance();
+		int kept = 0;
+		for (int i = 0; i < flows.size(); i++) {
+			Flow f = flows.get (i);
+			long t = Event.toTicks (f.remaining / f.rate);
+			if (t == 0) transmitted (f);
+			else flows.set (kept++, f);
+		}
+		boolean changed = kept < flows.size();
+		while (flows.size() > kept) flows.remove (flows.size() - 1);
+		if (changed) allocate();
+		reschedule();
+	}
+	
+	// A flow has finished transmitting - it arrives at the other end
+	// after the link's latency, unless the receiver has gone offline
+	private void transmitted (Flow f)
+	{
+		f.finished = true;
+		if (LOG) trace (TRANSMITTED, f).add (f).end();
+		NetworkInterface ni = network.get (f.dest);
+		if (ni == null) return;
+		Event.scheduleTicks (ni.node.lane, ni.node, f.latency,
+					Node.FLOW_ARRIVED, f);
+	}
+	
+	// Start a log record about a flow's link and search
+	private Trace trace (int kind, Flow f)
+	{
+		return Event.trace (kind, f.src.net.address, f.dest, f.id);
+	}
+	
+	// EventTarget interface
+	public void handleEvent (int code, Object data)
+	{
+		if (code == FINISH) finish();
+	}
+	
+	private final static int FINISH = Event.code();
+	
+	// Log records
+	private final static int STARTED = Trace.kind ("{} started");
+	private final static int TRANSMITTED = Trace.kind ("{} transmitted");
+}
@@ -0,0 +1,108 @@
+// This software has been placed in the public domain by its author
+
+// Make independent copies of a simulation (or of anything containing one),
+// so that a simulation can be warmed up once and then continued with
+// different settings on several threads. The copies are made by
+// serializing the simulation in memory, except that objects marked Shared
+// are shared by all the copies instead of being copied. The nodes' stores
+// and caches, which account for most of the memory, are frozen into shared
+// objects first (see Node.freeze()), so the copies use little more memory
+// than the original until they start to diverge.
+
+package sim;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+class Fork
+{
+	// An object that never changes, and can therefore be shared by copies
+	interface Shared {}
+	
+	@SuppressWarnings("unchecked")
+	public static <T> ArrayList<T> copies (T original, int n)
+		throws IOException, ClassNotFoundException
+	{
+		ArrayList<Object> shared = new ArrayList<Object>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new Writer (bytes, shared);
+		out.writeObject (original);
+		out.close();
+		byte[] state = bytes.toByteArray();
+		ArrayList<T> copies = new ArrayList<T> (n);
+		for (int i = 0; i < n; i++) {
+			ObjectInputStream in = new Reader
+				(new ByteArrayInputStream (state), shared);
+			copies.add ((T) in.readObject());
+			in.close();
+		}
+		return copies;
+	}
+	
+	// Stands in for a shared object in the serialized state
+	private static class Reference implements Serializable
+	{
+		private final static long serialVersionUID = 1L;
+		
+		final int index;
+		
+		Reference (int index)
+		{
+			this.index = index;
+		}
+	}
+	
+	private static class Writer extends ObjectOutputStream
+	{
+		private final ArrayList<Object> shared;
+		private final IdentityHashMap<Object,Reference> references
+			= new IdentityHashMap<Object,Reference>();
+		
+		Writer (OutputStream out, ArrayList<Object> shared)
+			throws IOException
+		{
+			super (out);
+			this.shared = shared;
+			enableReplaceObject (true);
+		}
+		
+		protected Object replaceObject (Object o)
+		{
+			if (!(o instanceof Shared)) return o;
+			Reference r = references.get (o);
+			if (r == null) {
+				r = new Reference (shared.size());
+				shared.add (o);
+				references.put (o, r);
+			}
+			return r;
+		}
+	}
+	
+	private static class Reader extends ObjectInputStream
+	{
+		private final ArrayList<Object> shared;
+		
+		Reader (InputStream in, ArrayList<Object> shared)
+			throws IOException
+		{
+			super (in);
+			this.shared = shared;
+			enableResolveObject (true);
+		}
+		
+		protected Object resolveObject (Object o)
+		{
+			if (o instanceof Reference)
+				return shared.get (((Reference) o).index);
+			return o;
+		}
+	}
+}
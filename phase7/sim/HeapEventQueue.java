@@ -0,0 +1,202 @@
+// This software has been placed in the public domain by its author
+
+// A 4-ary heap of events - no per-event objects. Each event occupies a
+// slot in a set of parallel arrays, and slots are recycled through a free
+// list. The heap itself holds slot numbers, with a copy of each event's
+// time and ID alongside so that comparisons don't have to chase the slot.
+
+package sim;
+import java.util.Arrays;
+
+class HeapEventQueue implements EventQueue
+{
+	private final static int ARITY = 4; // Children per heap node
+	private final static int INITIAL_CAPACITY = 1024;
+	private final static int NONE = -1; // End of the free list
+	
+	// The heap, by position
+	private int size = 0;
+	private int[] heap = new int[INITIAL_CAPACITY]; // Slot of each event
+	private long[] keyTimes = new long[INITIAL_CAPACITY];
+	private long[] keyIds = new long[INITIAL_CAPACITY];
+	
+	// Event storage, by slot
+	private int[] lanes = new int[INITIAL_CAPACITY];
+	private int[] codes = new int[INITIAL_CAPACITY];
+	private EventTarget[] targets = new EventTarget[INITIAL_CAPACITY];
+	private Object[] data = new Object[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int[] nextFree = new int[INITIAL_CAPACITY];
+	private int free = NONE; // Head of the list of unused slots
+	private int used = 0; // Slots that have ever been used
+	
+	public void add (long time, long id, int lane, EventTarget target,
+				int code, Object d, long value)
+	{
+		int slot = allocate();
+		lanes[slot] = lane;
+		targets[slot] = target;
+		codes[slot] = code;
+		data[slot] = d;
+		values[slot] = value;
+		siftUp (size++, time, id, slot);
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public long headTime()
+	{
+		return keyTimes[0];
+	}
+	
+	public long headId()
+	{
+		return keyIds[0];
+	}
+	
+	public int headLane()
+	{
+		return lanes[heap[0]];
+	}
+	
+	public EventTarget headTarget()
+	{
+		return targets[heap[0]];
+	}
+	
+	public int headCode()
+	{
+		return codes[heap[0]];
+	}
+	
+	public Object headData()
+	{
+		return data[heap[0]];
+	}
+	
+	public long headValue()
+	{
+		return values[heap[0]];
+	}
+	
+	public void pop()
+	{
+		release (heap[0]);
+		int last = --size;
+		if (last > 0) siftDown (0, keyTimes[last], keyIds[last], heap[last]);
+	}
+	
+	public int purge (LongHashSet purged)
+	{
+		// Squeeze out the purged events, then rebuild the heap
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (purged.contains (keyIds[i])) release (heap[i]);
+			else move (i, n++);
+		}
+		int removed = size - n;
+		size = n;
+		for (int i = (size - 2) / ARITY; i >= 0; i--)
+			siftDown (i, keyTimes[i], keyIds[i], heap[i]);
+		return removed;
+	}
+	
+	public void clear()
+	{
+		Arrays.fill (targets, null);
+		Arrays.fill (data, null);
+		size = 0;
+		used = 0;
+		free = NONE;
+	}
+	
+	// Must be consistent with Event.compareTo()
+	private static boolean before (long t1, long id1, long t2, long id2)
+	{
+		return t1 < t2 || (t1 == t2 && id1 < id2);
+	}
+	
+	// Move the hole at position i up until the event fits, then fill it
+	private void siftUp (int i, long time, long id, int slot)
+	{
+		while (i > 0) {
+			int parent = (i - 1) / ARITY;
+			if (!before (time, id, keyTimes[parent], keyIds[parent]))
+				break;
+			move (parent, i);
+			i = parent;
+		}
+		set (i, time, id, slot);
+	}
+	
+	// Move the hole at position i down until the event fits, then fill it
+	private void siftDown (int i, long time, long id, int slot)
+	{
+		while (true) {
+			int first = i * ARITY + 1;
+			if (first >= size) break;
+			// Find the earliest child
+			int best = first;
+			int end = Math.min (first + ARITY, size);
+			for (int c = first + 1; c < end; c++)
+				if (before (keyTimes[c], keyIds[c],
+				keyTimes[best], keyIds[best])) best = c;
+			if (!before (keyTimes[best], keyIds[best], time, id)) break;
+			move (best, i);
+			i = best;
+		}
+		set (i, time, id, slot);
+	}
+	
+	private void move (int from, int to)
+	{
+		heap[to] = heap[from];
+		keyTimes[to] = keyTimes[from];
+		keyIds[to] = keyIds[from];
+	}
+	
+	private void set (int i, long time, long id, int slot)
+	{
+		heap[i] = slot;
+		keyTimes[i] = time;
+		keyIds[i] = id;
+	}
+	
+	private int allocate()
+	{
+		if (free != NONE) {
+			int slot = free;
+			free = nextFree[slot];
+			return slot;
+		}
+		if (used == heap.length) grow();
+		return used++;
+	}
+	
+	// Don't keep dead targets and payloads reachable
+	private void release (int slot)
+	{
+		targets[slot] = null;
+		data[slot] = null;
+		nextFree[slot] = free;
+		free = slot;
+	}
+	
+	// Every slot is in use, so the heap is full too
+	private void grow()
+	{
+		int capacity = heap.length * 2;
+		heap = Arrays.copyOf (heap, capacity);
+		keyTimes = Arrays.copyOf (keyTimes, capacity);
+		keyIds = Arrays.copyOf (keyIds, capacity);
+		lanes = Arrays.copyOf (lanes, capacity);
+		codes = Arrays.copyOf (codes, capacity);
+		targets = Arrays.copyOf (targets, capacity);
+		data = Arrays.copyOf (data, capacity);
+		values = Arrays.copyOf (values, capacity);
+		nextFree = Arrays.copyOf (nextFree, capacity);
+	}
+}
@@ -0,0 +1,74 @@
+// This software has been placed in the public domain by its author
+
+// A link with bursty loss, duplication, jitter and extra latency in one
+// direction, any of which can be switched off.
+//
+// Loss follows the Gilbert-Elliott model: the link is either in a good
+// state or a bad state, each with its own loss rate, and before each
+// packet it may move from one state to the other, so losses come in
+// bursts whose average length depends on how quickly the link leaves the
+// bad state. Jitter is drawn from a Lomax (shifted Pareto) distribution,
+// which has a heavy tail - most packets are delayed a little and a few a
+// lot, which reorders them. Extra latency is added to every packet, so
+// giving the two directions of a link different amounts makes it
+// asymmetric.
+
+package sim;
+
+class ImpairedLink implements LinkModel
+{
+	private final static long serialVersionUID = 1L;
+	
+	public final static double MAX_JITTER = 60.0; // Seconds
+	
+	// Gilbert-Elliott loss - probabilities per packet
+	public double goodToBad = 0.0, badToGood = 1.0; // State transitions
+	public double goodLoss = 0.0, badLoss = 0.0; // Loss in each state
+	private boolean bad = false; // Current state
+	
+	public double duplication = 0.0; // Probability of an extra copy
+	public double jitter = 0.0; // Scale of the jitter, seconds
+	public double jitterShape = 2.0; // Tail index, heavier when smaller
+	public double extraLatency = 0.0; // Seconds
+	
+	// Bursty loss with the given average loss rate and average burst
+	// length in packets, losing every packet in the bad state
+	public static ImpairedLink bursty (double lossRate, double burst)
+	{
+		ImpairedLink link = new ImpairedLink();
+		link.badToGood = 1.0 / burst;
+		// The link spends lossRate of its time in the bad state
+		link.goodToBad = link.badToGood * lossRate / (1.0 - lossRate);
+		link.badLoss = 1.0;
+		return link;
+	}
+	
+	// Once per packet, so the copies of a duplicated packet share its
+	// state and don't move the loss chain on twice
+	public int copies (Rng random)
+	{
+		// Move between the good and bad states
+		if (bad) {
+			if (random.nextDouble() < badToGood) bad = false;
+		}
+		else if (goodToBad > 0.0 && random.nextDouble() < goodToBad)
+			bad = true;
+		if (duplication > 0.0 && random.nextDouble() < duplication)
+			return 2;
+		return 1;
+	}
+	
+	public long delay (long latency, Rng random)
+	{
+		// Each copy may be lost in the packet's state
+		double loss = bad ? badLoss : goodLoss;
+		if (loss > 0.0 && random.nextDouble() < loss) return -1;
+		double extra = extraLatency;
+		if (jitter > 0.0) {
+			double u = 1.0 - random.nextDouble(); // Never zero
+			double j = jitter * (Math.pow (u, -1.0/jitterShape) - 1.0);
+			extra += Math.min (j, MAX_JITTER);
+		}
+		return latency + Event.toTicks (extra);
+	}
+}
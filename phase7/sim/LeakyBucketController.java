@@ -0,0 +1,66 @@
+// This software has been placed in the public domain by its author
+
+// AIMD congestion control with a leaky bucket: the window grows and
+// shrinks as in CongestionWindow, but instead of being sent in a burst
+// whenever acks open it, the window is spread evenly across each
+// round-trip time, so the sender's queue and the links' queues stay short.
+// The bucket holds at most one full-sized packet, so the sender can't save
+// up for a burst while it's idle.
+
+package sim;
+
+class LeakyBucketController extends CongestionWindow
+{
+	private final static long serialVersionUID = 1L;
+	
+	private double credit = Packet.MAX_SIZE; // Bytes that can be sent
+	private double lastUpdate = 0.0; // When credit was last added, seconds
+	private double rtt = 5.0; // The peer's average round-trip time, secs
+	
+	public LeakyBucketController (Peer peer)
+	{
+		super (peer);
+	}
+	
+	public int available()
+	{
+		refill();
+		return Math.min (super.available(), (int) credit);
+	}
+	
+	public void bytesSent (int bytes)
+	{
+		refill();
+		credit -= bytes;
+		super.bytesSent (bytes);
+	}
+	
+	public void rttSample (double rtt, double average)
+	{
+		refill(); // At the old rate
+		this.rtt = average;
+		if (LOG) peer.log ("sending " + rate() + " bytes per second");
+	}
+	
+	public double nextAvailable (double now)
+	{
+		refill();
+		if (credit >= Packet.MAX_SIZE) return Double.POSITIVE_INFINITY;
+		return now + (Packet.MAX_SIZE - credit) / rate();
+	}
+	
+	// Bytes per second
+	private double rate()
+	{
+		return size() / rtt;
+	}
+	
+	// Add the credit earned since the last update
+	private void refill()
+	{
+		double now = Event.time();
+		credit += (now - lastUpdate) * rate();
+		if (credit > Packet.MAX_SIZE) credit = Packet.MAX_SIZE;
+		lastUpdate = now;
+	}
+}
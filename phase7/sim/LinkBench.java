@@ -0,0 +1,148 @@
+// This software has been placed in the public domain by its author
+
+// Measure the cost of a saturated link: one node sends blocks to another
+// over a 15 kB/s link, a little faster than the link can carry them, so
+// the interface queues stay full, packets are dropped and retransmitted
+// and the sender's retransmission buffer stays long. The link can be
+// impaired (see ImpairedLink) to see how much of its throughput the
+// sender keeps, and with or without selective acks (see Peer).
+
+package sim;
+import sim.messages.Block;
+import sim.messages.Message;
+
+class LinkBench implements EventTarget
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final static long SEED = 1;
+	private final static double SPEED = 15000; // Bytes per second
+	private final static double LATENCY = 0.1; // Seconds
+	private final static double RATE = 20.0; // Blocks per second
+	
+	private final Simulation simulation;
+	private final Node sender;
+	private final Receiver receiver;
+	private final Peer peer; // The sender's peer
+	private long sent = 0; // Blocks sent
+	
+	private LinkBench (boolean trains, String impairment, boolean sack)
+	{
+		simulation = new Simulation();
+		simulation.setSeed (SEED);
+		simulation.packetTrains = trains;
+		simulation.selectiveAcks = sack;
+		Simulation.setCurrent (simulation);
+		sender = new Node (SPEED, SPEED);
+		receiver = new Receiver();
+		sender.connectBothWays (receiver, LATENCY);
+		peer = sender.peers().get (0);
+		Peer back = receiver.peers().get (0);
+		if (impairment.equals ("loss")) {
+			peer.link = uniformLoss (0.01);
+			back.link = uniformLoss (0.01);
+		}
+		else if (impairment.equals ("bursty")) {
+			peer.link = ImpairedLink.bursty (0.01, 4.0);
+			back.link = ImpairedLink.bursty (0.01, 4.0);
+		}
+		else if (impairment.equals ("duplicate")) {
+			ImpairedLink link = new ImpairedLink();
+			link.duplication = 0.01;
+			peer.link = link;
+		}
+		else if (impairment.equals ("jitter")) {
+			ImpairedLink link = new ImpairedLink();
+			link.jitter = 0.01;
+			link.jitterShape = 1.5;
+			peer.link = link;
+		}
+		else if (impairment.equals ("asymmetric")) {
+			// Acks take three times as long as data
+			ImpairedLink link = new ImpairedLink();
+			link.extraLatency = LATENCY * 2.0;
+			back.link = link;
+		}
+		else if (!impairment.equals ("none")) usage();
+		Event.schedule (sender.lane, this, 0.0, SEND, null);
+	}
+	
+	private static ImpairedLink uniformLoss (double lossRate)
+	{
+		ImpairedLink link = new ImpairedLink();
+		link.goodLoss = lossRate;
+		return link;
+	}
+	
+	// A node that counts the blocks it receives
+	private static class Receiver extends Node
+	{
+		private final static long serialVersionUID = 1L;
+		
+		long blocks = 0;
+		
+		Receiver()
+		{
+			super (SPEED, SPEED);
+		}
+		
+		public void handleMessage (Message m, Peer src)
+		{
+			if (m instanceof Block) blocks++;
+			else super.handleMessage (m, src);
+		}
+	}
+	
+	// Run for the given number of simulated seconds, return wall seconds
+	private double run (double duration)
+	{
+		simulation.setDuration (duration);
+		long start = System.nanoTime();
+		simulation.run();
+		return (System.nanoTime() - start) * 1e-9;
+	}
+	
+	public void handleEvent (int code, Object data)
+	{
+		peer.sendMessage (new Block ((int) (sent / 32), (int) (sent % 32)));
+		sent++;
+		Event.schedule (sender.lane, this, 1.0 / RATE, SEND, null);
+	}
+	
+	private final static int SEND = Event.code();
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: LinkBench <duration> [trains [impairment [sack]]]");
+		System.err.println ("Impairments: none loss bursty duplicate jitter asymmetric");
+		System.exit (1);
+	}
+	
+	public static void main (String[] args)
+	{
+		if (args.length < 1 || args.length > 4) usage();
+		double duration = Double.parseDouble (args[0]);
+		boolean trains = false;
+		if (args.length >= 2) trains = Boolean.parseBoolean (args[1]);
+		String impairment = "none";
+		if (args.length >= 3) impairment = args[2];
+		boolean sack = false;
+		if (args.length == 4) sack = Boolean.parseBoolean (args[3]);
+		// Warm up the JIT with a short run
+		new LinkBench (trains, impairment, sack).run (duration / 10.0);
+		LinkBench b = new LinkBench (trains, impairment, sack);
+		double secs = b.run (duration);
+		System.out.println (b.sent + " blocks sent, "
+			+ b.receiver.blocks + " received, "
+			+ (long) (b.receiver.blocks * Message.DATA_SIZE
+				/ duration) + " bytes/second");
+		System.out.println (b.simulation.retransmissions
+			+ " retransmissions, "
+			+ b.simulation.duplicates + " duplicates received, "
+			+ b.simulation.ackOnly + " ack-only packets");
+		System.out.println (b.simulation.dispatched + " events, "
+			+ secs + " seconds, "
+			+ (long) (b.simulation.dispatched / secs)
+			+ " events/second");
+	}
+}
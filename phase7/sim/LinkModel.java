@@ -0,0 +1,27 @@
+// This software has been placed in the public domain by its author
+
+// The impairments of one direction of a link: what happens to each packet
+// on its way across, besides the link's latency (see Network and
+// ImpairedLink). A link without a model gets the network's uniform loss
+// rate and reordering.
+//
+// Models can add to the latency but never take away from it, so the
+// lookahead of a parallel run still holds. They're called for every
+// packet, so they shouldn't allocate anything, and they draw their random
+// numbers from the link's stream, so runs can be repeated.
+
+package sim;
+import java.io.Serializable;
+
+interface LinkModel extends Serializable
+{
+	// Return the number of copies of a packet that will cross the link
+	// (more than one if the packet's duplicated) - called once for each
+	// packet, before delay() is called for each copy, so any state that
+	// moves from packet to packet should move here
+	public int copies (Rng random);
+	
+	// Return the delay in ticks of a copy crossing a link with the given
+	// latency, or -1 if the copy is lost
+	public long delay (long latency, Rng random);
+}
@@ -0,0 +1,92 @@
+// This software has been placed in the public domain by its author
+
+// A set of longs using open addressing - no boxing
+
+package sim;
+import java.util.Arrays;
+
+class LongHashSet
+{
+	private final static long EMPTY = Long.MIN_VALUE;
+	
+	private long[] slots = new long[16];
+	private int size = 0;
+	
+	public LongHashSet()
+	{
+		Arrays.fill (slots, EMPTY);
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	private int index (long value)
+	{
+		long h = value * 0x9E3779B97F4A7C15L; // Fibonacci hashing
+		return (int) (h >>> 32) & (slots.length - 1);
+	}
+	
+	public boolean contains (long value)
+	{
+		int mask = slots.length - 1;
+		for (int i = index (value); slots[i] != EMPTY; i = (i+1) & mask)
+			if (slots[i] == value) return true;
+		return false;
+	}
+	
+	// Return true if the value was added, false if already present
+	public boolean add (long value)
+	{
+		if ((size + 1) * 2 > slots.length) rehash (slots.length * 2);
+		int mask = slots.length - 1;
+		int i = index (value);
+		while (slots[i] != EMPTY) {
+			if (slots[i] == value) return false;
+			i = (i + 1) & mask;
+		}
+		slots[i] = value;
+		size++;
+		return true;
+	}
+	
+	// Return true if the value was removed, false if not present
+	public boolean remove (long value)
+	{
+		int mask = slots.length - 1;
+		int i = index (value);
+		while (slots[i] != value) {
+			if (slots[i] == EMPTY) return false;
+			i = (i + 1) & mask;
+		}
+		// Shift later members of the probe sequence back into the gap
+		int gap = i;
+		for (i = (i + 1) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+			int home = index (slots[i]);
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				slots[gap] = slots[i];
+				gap = i;
+			}
+		}
+		slots[gap] = EMPTY;
+		size--;
+		return true;
+	}
+	
+	public void clear()
+	{
+		if (size == 0) return;
+		Arrays.fill (slots, EMPTY);
+		size = 0;
+	}
+	
+	private void rehash (int capacity)
+	{
+		long[] old = slots;
+		slots = new long[capacity];
+		Arrays.fill (slots, EMPTY);
+		size = 0;
+		for (long value : old) if (value != EMPTY) add (value);
+	}
+}
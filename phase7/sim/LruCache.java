@@ -3,19 +3,21 @@
 // Limited-capacity LRU cache
 
 package sim;
-import java.util.LinkedHashSet;
+import java.io.Serializable;
 
-class LruCache<Key>
+class LruCache<Key> implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	public final int capacity;
-	private LinkedHashSet<Key> set;
+	private SharedLinkedSet<Key> set; // Oldest first
 	
 	public LruCache (int capacity)
 	{
 		this.capacity = capacity;
-		set = new LinkedHashSet<Key> (capacity);
+		set = new SharedLinkedSet<Key> (capacity);
 	}
 	
 	public boolean get (Key key)
@@ -37,7 +39,7 @@ class LruCache<Key>
 			if (LOG) log ("adding key " + key + " to cache");
 			if (set.size() == capacity) {
 				// Discard the oldest element
-				Key oldest = set.iterator().next();
+				Key oldest = set.first();
 				if (LOG) log ("discarding key " + oldest);
 				set.remove (oldest);
 			}
@@ -45,6 +47,12 @@ class LruCache<Key>
 		set.add (key); // Add or move the key to the fresh end
 	}
 	
+	// Share the contents with copies of the simulation (see Fork)
+	public void freeze()
+	{
+		set.freeze();
+	}
+	
 	private void log (String message)
 	{
 		Event.log (message);
@@ -3,22 +3,23 @@
 // Limited-capacity LRU cache that stores a value for each key
 
 package sim;
-import java.util.LinkedHashSet;
-import java.util.HashMap;
+import java.io.Serializable;
 
-class LruMap<Key,Value>
+class LruMap<Key,Value> implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	public final int capacity;
-	private LinkedHashSet<Key> set;
-	private HashMap<Key,Value> map;
+	private SharedLinkedSet<Key> set; // Oldest first
+	private SharedHashMap<Key,Value> map;
 	
 	public LruMap (int capacity)
 	{
 		this.capacity = capacity;
-		set = new LinkedHashSet<Key> (capacity);
-		map = new HashMap<Key,Value> (capacity);
+		set = new SharedLinkedSet<Key> (capacity);
+		map = new SharedHashMap<Key,Value> (capacity);
 	}
 	
 	public Value get (Key key)
@@ -41,7 +42,7 @@ class LruMap<Key,Value>
 			if (LOG) log ("adding key " + key + " to cache");
 			if (set.size() == capacity) {
 				// Discard the oldest element
-				Key oldest = set.iterator().next();
+				Key oldest = set.first();
 				if (LOG) log ("discarding key " + oldest);
 				set.remove (oldest);
 			}
@@ -57,6 +58,13 @@ class LruMap<Key,Value>
 		}
 	}
 	
+	// Share the contents with copies of the simulation (see Fork)
+	public void freeze()
+	{
+		set.freeze();
+		map.freeze();
+	}
+	
 	private void log (String message)
 	{
 		Event.log (message);
@@ -1,39 +1,122 @@
 // This software has been placed in the public domain by its author
 
+// The network's address space. Addresses are handed out in order, so the
+// interfaces are kept in an array indexed by address, with an empty slot
+// for any interface that's offline.
+
 package sim;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.io.Serializable;
 
-class Network
+class Network implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
-	private static HashMap<Integer,NetworkInterface> interfaces
-		= new HashMap<Integer,NetworkInterface>();
-	private static int nextAddress = 0;
-	public static boolean reorder = false; // Can packets be reordered?
-	public static double lossRate = 0.0; // Random packet loss
-	// FIXME: random packet duplication
+	private NetworkInterface[] interfaces = new NetworkInterface[16];
+	private int nextAddress = 0;
+	private long minLatency = Long.MAX_VALUE; // Of any link, ticks
+	// Links without their own impairments (see LinkModel)
+	public boolean reorder = false; // Can packets be reordered?
+	public double lossRate = 0.0; // Random packet loss
 	
-	// Deliver a packet to an address
-	public static void deliver (Packet p)
+	// Deliver a packet to an address - the packet's reference passes to
+	// the receiving interface
+	public void deliver (Packet p)
 	{
-		NetworkInterface ni = interfaces.get (p.dest);
-		if (ni == null) return; // Node doesn't exist or is offline
+		deliver (p, 0L);
+	}
+	
+	// Deliver a packet that's still waiting to be transmitted, which will
+	// take the given number of ticks
+	public void deliver (Packet p, long delay)
+	{
+		NetworkInterface ni = get (p.dest);
+		if (ni == null) {
+			// Node doesn't exist or is offline
+			p.release();
+			return;
+		}
+		if (p.link != null) {
+			deliver (p, ni, delay);
+			return;
+		}
 		// If the network allows reordering, randomise the latency a bit
-		if (reorder) p.latency *= (0.95 + Math.random() * 0.1);
-		if (Math.random() < lossRate) {
+		long latency = p.latency;
+		if (reorder) latency = Math.round
+			(latency * (0.95 + p.random.nextDouble() * 0.1));
+		// The link's random numbers decide whether the packet is lost
+		if (lossRate > 0.0 && p.random.nextDouble() < lossRate) {
 			if (LOG) Event.log (p + " lost by network");
+			p.release();
 			return;
 		}
 		// Schedule the arrival of the packet at the destination
-		Event.schedule (ni, p.latency, NetworkInterface.RX_QUEUE, p);
+		Event.scheduleTicks (ni.node.lane, ni, delay + latency,
+				NetworkInterface.RX_QUEUE, p);
+	}
+	
+	// Deliver each copy of a packet that the link's model doesn't lose,
+	// each copy holding a reference
+	private void deliver (Packet p, NetworkInterface ni, long delay)
+	{
+		int copies = p.link.copies (p.random);
+		int arrivals = 0;
+		for (int i = 0; i < copies; i++) {
+			long latency = p.link.delay (p.latency, p.random);
+			if (latency < 0) {
+				if (LOG) Event.log (p + " lost by network");
+				continue;
+			}
+			if (arrivals++ > 0) p.retain(); // Duplicate
+			Event.scheduleTicks (ni.node.lane, ni, delay + latency,
+					NetworkInterface.RX_QUEUE, p);
+		}
+		if (arrivals == 0) p.release();
+	}
+	
+	// Called by Node when a link is created, with the latency in ticks
+	public void addLink (long latency)
+	{
+		if (latency < minLatency) minLatency = latency;
+	}
+	
+	// The shortest time a packet can take to cross any link, in ticks
+	public long lookahead()
+	{
+		if (minLatency == Long.MAX_VALUE) return 0;
+		if (reorder) return (long) (minLatency * 0.95); // Rounded down
+		return minLatency;
+	}
+	
+	// Return the interface with the given address, or null if it doesn't
+	// exist or is offline
+	public NetworkInterface get (int address)
+	{
+		if (address < 0 || address >= nextAddress) return null;
+		return interfaces[address];
 	}
 	
 	// Attach an interface to the network - returns the address
-	public static int register (NetworkInterface ni)
+	public int register (NetworkInterface ni)
 	{
 		int address = nextAddress++;
-		interfaces.put (address, ni);
+		if (address == interfaces.length)
+			interfaces = Arrays.copyOf (interfaces, address * 2);
+		interfaces[address] = ni;
 		return address;
 	}
+	
+	// Take an interface offline - packets sent to it are discarded
+	public void detach (NetworkInterface ni)
+	{
+		interfaces[ni.address] = null;
+	}
+	
+	// Bring an interface back online at its old address
+	public void attach (NetworkInterface ni)
+	{
+		interfaces[ni.address] = ni;
+	}
 }
@@ -0,0 +1,96 @@
+// This software has been placed in the public domain by its author
+
+// Measure how many packets per second the network can deliver, from
+// Network.deliver() through the receiving node's interface, without any
+// peers or messages - every node sends a small packet to a random node
+// every millisecond
+
+package sim;
+
+class NetworkBench implements EventTarget
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final static long SEED = 1;
+	private final static double INTERVAL = 0.001; // Seconds between rounds
+	private final static double SPEED = 1e12; // Bytes per second
+	private final static double LATENCY = 0.1; // Seconds
+	
+	private final Simulation simulation;
+	private final Network network;
+	private final Packet[] packets;
+	private final int nodes;
+	private int next = 0; // Next packet to send
+	private long sent = 0; // Packets passed to the network
+	
+	private NetworkBench (int nodes, double lossRate)
+	{
+		this.nodes = nodes;
+		simulation = new Simulation();
+		simulation.setSeed (SEED);
+		Simulation.setCurrent (simulation);
+		network = simulation.network;
+		network.reorder = true;
+		network.lossRate = lossRate;
+		for (int i = 0; i < nodes; i++) new Node (SPEED, SPEED);
+		// Eight packets per node, each with its own link's random
+		// numbers, between random pairs of nodes
+		Rng random = simulation.random();
+		packets = new Packet[nodes * 8];
+		for (int i = 0; i < packets.length; i++) {
+			int src = i % nodes;
+			int dest = random.nextInt (nodes);
+			packets[i] = new Packet (src, dest,
+					Event.toTicks (LATENCY), -1);
+			packets[i].random = simulation.newStream();
+			packets[i].retain(); // Never recycled
+		}
+		Event.schedule (this, 0.0, SEND, null);
+	}
+	
+	// Run for the given number of simulated seconds, return packets/sec
+	private double run (double duration)
+	{
+		simulation.setDuration (duration);
+		long start = System.nanoTime();
+		simulation.run();
+		double secs = (System.nanoTime() - start) * 1e-9;
+		return sent / secs;
+	}
+	
+	public void handleEvent (int code, Object data)
+	{
+		for (int i = 0; i < nodes; i++) {
+			// The network passes its reference to the receiver
+			packets[next].retain();
+			network.deliver (packets[next]);
+			if (++next == packets.length) next = 0;
+		}
+		sent += nodes;
+		Event.schedule (this, INTERVAL, SEND, null);
+	}
+	
+	private final static int SEND = Event.code();
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: NetworkBench <nodes> <duration> [loss rate]");
+		System.exit (1);
+	}
+	
+	public static void main (String[] args)
+	{
+		if (args.length < 2 || args.length > 3) usage();
+		int nodes = Integer.parseInt (args[0]);
+		double duration = Double.parseDouble (args[1]);
+		double lossRate = 0.001;
+		if (args.length == 3) lossRate = Double.parseDouble (args[2]);
+		// Warm up the JIT with a short run
+		new NetworkBench (nodes, lossRate).run (duration / 10.0);
+		NetworkBench b = new NetworkBench (nodes, lossRate);
+		double rate = b.run (duration);
+		System.out.println (b.sent + " packets, "
+			+ b.simulation.dispatched + " events, "
+			+ (long) rate + " packets/second");
+	}
+}
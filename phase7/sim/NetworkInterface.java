@@ -1,49 +1,165 @@
 // This software has been placed in the public domain by its author
 
 // A node's low-level network interface
+//
+// Packets are transmitted one at a time from a queue, and received one at
+// a time from another. Packets that don't fit in a queue are dropped,
+// and each queue's discipline may drop others (see QueueDiscipline). If the
+// simulation sends packets as trains, the time each packet finishes
+// transmitting is worked out as soon as it's queued, from the time the
+// packet ahead of it finishes, and the packet is handed to the network
+// straight away with that much extra delay - so the queue only needs to
+// remember the packets' sizes and finishing times, and there are no
+// events for the end of each transmission. The queue fills and drops
+// packets exactly as before, except that a packet queued in the same
+// tick as the one ahead of it finishes always finds it gone.
 
 package sim;
-import java.util.LinkedList;
 
 class NetworkInterface implements EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	public final int address; // Represents an IP address and port
-	private Node node; // The owner of this network interface
+	final Node node; // The owner of this network interface
+	private Network network; // The network the interface is attached to
 	private double txSpeed, rxSpeed; // Bytes per second
 	
-	private LinkedList<Packet> txQueue; // Queue of outgoing packets
-	private LinkedList<Packet> rxQueue; // Queue of incoming packets
-	private int txQueueSize, rxQueueSize; // Number of bytes in each queue
-	private int txQueueMaxSize, rxQueueMaxSize; // Drop-tail queues
+	private PacketQueue txQueue; // Queue of outgoing packets
+	private PacketTrain txTrain; // Or their sizes, if sent as trains
+	private PacketQueue rxQueue; // Queue of incoming packets
+	private int txQueueMaxSize, rxQueueMaxSize; // Bytes
+	private QueueDiscipline txDiscipline, rxDiscipline;
 	
 	public NetworkInterface (Node node, double txSpeed, double rxSpeed)
 	{
 		this.node = node;
 		this.txSpeed = txSpeed;
 		this.rxSpeed = rxSpeed;
-		txQueue = new LinkedList<Packet>();
-		rxQueue = new LinkedList<Packet>();
-		txQueueSize = rxQueueSize = 0; // Bytes currently queued
+		if (Simulation.current().packetTrains)
+			txTrain = new PacketTrain();
+		else txQueue = new PacketQueue();
+		rxQueue = new PacketQueue();
 		txQueueMaxSize = 10000;
 		rxQueueMaxSize = 20000;
-		// Attach the interface to the network
-		address = Network.register (this);
+		useDiscipline (Simulation.current().queueDiscipline);
+		// Attach the interface to the current simulation's network
+		network = Simulation.current().network;
+		address = network.register (this);
 	}
-		
-	// Called by Node
+	
+	// Called by Node - the interface holds a reference to the packet
+	// until it's passed to the network
 	public void sendPacket (Packet p)
 	{
-		if (txQueueSize + p.size > txQueueMaxSize) {
-			if (LOG) log ("no room in txQueue, " + p + " lost");
+		p.retain();
+		if (txTrain != null) {
+			sendTrain (p);
+			return;
+		}
+		long now = Event.ticks();
+		if (!txDiscipline.admit (txQueue.bytes(), now)) {
+			drop (p, TX_DROPPED);
+			return;
+		}
+		if (txQueue.bytes() + p.size > txQueueMaxSize) {
+			drop (p, TX_LOST);
 			return;
 		}
-		txQueue.add (p);
-		txQueueSize += p.size;
-		if (LOG) log (txQueueSize + " bytes in txQueue");
+		txQueue.add (p, now);
+		if (LOG) trace (TX_QUEUE).add (txQueue.bytes()).end();
 		// If there are no other packets in the queue, start to transmit
-		if (txQueue.size() == 1) txStart (p);
+		if (txQueue.size() == 1) txStart();
+	}
+	
+	// Queue a packet behind the train of packets waiting to be sent, and
+	// pass it to the network to arrive after it's been transmitted
+	private void sendTrain (Packet p)
+	{
+		long now = Event.ticks();
+		txTrain.expire (now); // Packets that have been transmitted
+		if (!txDiscipline.admit (txTrain.bytes(), now)) {
+			drop (p, TX_DROPPED);
+			return;
+		}
+		if (txTrain.bytes() + p.size > txQueueMaxSize) {
+			drop (p, TX_LOST);
+			return;
+		}
+		// The packet's wait is already known, but not what will be
+		// queued behind it when it's sent, so the discipline is shown
+		// what's ahead of it instead. If it's dropped it still takes
+		// up room until then.
+		long start = Math.max (now, txTrain.finish());
+		if (!txDiscipline.keep (start - now, txTrain.bytes(), start)) {
+			txTrain.add (start, p.size);
+			drop (p, TX_DROPPED);
+			return;
+		}
+		transmitted (start - now);
+		// Delay depends on tx speed
+		long end = start + Event.toTicks (p.size / txSpeed);
+		txTrain.add (end, p.size);
+		if (LOG) trace (TX_QUEUE).add (txTrain.bytes()).end();
+		network.deliver (p, end - now);
+	}
+	
+	// Select the discipline of both queues: "droptail", "red" or "codel"
+	public void useDiscipline (String name)
+	{
+		txDiscipline = newDiscipline (name, txSpeed, txQueueMaxSize);
+		rxDiscipline = newDiscipline (name, rxSpeed, rxQueueMaxSize);
+	}
+	
+	private QueueDiscipline newDiscipline (String name, double speed,
+						int size)
+	{
+		if (name.equals ("droptail")) return new DropTailDiscipline();
+		if (name.equals ("red")) {
+			long small = Event.toTicks (Packet.HEADER_SIZE / speed);
+			return new RedDiscipline (size / 4, size * 3 / 4,
+						small, node.random);
+		}
+		if (name.equals ("codel")) {
+			// The target can't be less than the time it takes to
+			// send a full-sized packet
+			long target = Math.max (Event.toTicks (0.005),
+					Event.toTicks (Packet.MAX_SIZE / speed));
+			long interval = Math.max (Event.toTicks (0.1),
+						target * 10);
+			return new CoDelDiscipline (target, interval);
+		}
+		throw new IllegalArgumentException ("unknown discipline " + name);
+	}
+	
+	// Drop a packet that was arriving at or waiting in a queue
+	private void drop (Packet p, int kind)
+	{
+		if (LOG) trace (kind).add (p).end();
+		Simulation.current().dropped++;
+		p.release();
+	}
+	
+	// Count a packet that's starting to transmit after waiting in the
+	// queue for the given number of ticks
+	private void transmitted (long waited)
+	{
+		Simulation sim = Simulation.current();
+		sim.transmitted++;
+		sim.queueDelay += Event.toSeconds (waited);
+	}
+	
+	// Bytes per second
+	public double txSpeed()
+	{
+		return txSpeed;
+	}
+	
+	public double rxSpeed()
+	{
+		return rxSpeed;
 	}
 	
 	// Event callbacks
@@ -51,69 +167,120 @@ class NetworkInterface implements EventTarget
 	// Add a packet to the rx queue
 	private void rxQueueAdd (Packet p)
 	{
-		if (rxQueueSize + p.size > rxQueueMaxSize) {
-			if (LOG) log ("no room in rxQueue, " + p + " lost");
+		long now = Event.ticks();
+		if (!rxDiscipline.admit (rxQueue.bytes(), now)) {
+			drop (p, RX_DROPPED);
+			return;
+		}
+		if (rxQueue.bytes() + p.size > rxQueueMaxSize) {
+			drop (p, RX_LOST);
 			return;
 		}
-		rxQueue.add (p);
-		rxQueueSize += p.size;
-		if (LOG) log (rxQueueSize + " bytes in rxQueue");
+		rxQueue.add (p, now);
+		if (LOG) trace (RX_QUEUE_SIZE).add (rxQueue.bytes()).end();
 		// If there are no other packets in the queue, start to receive
-		if (rxQueue.size() == 1) rxStart (p);
+		if (rxQueue.size() == 1) rxStart();
 	}
 	
-	// Start receiving a packet
-	private void rxStart (Packet p)
+	// Start receiving the packet at the head of the queue, unless the
+	// discipline drops it, in which case try the next one
+	private void rxStart()
 	{
-		if (LOG) log ("starting to receive " + p);
-		// Delay depends on rx speed
-		Event.schedule (this, p.size / rxSpeed, RX_END, p);
+		long now = Event.ticks();
+		while (!rxQueue.isEmpty()) {
+			Packet p = rxQueue.peek();
+			long waited = now - rxQueue.time (0);
+			int behind = rxQueue.bytes() - p.size;
+			if (rxDiscipline.keep (waited, behind, now)) {
+				if (LOG) trace (RX_START).add (p).end();
+				// Delay depends on rx speed
+				Event.schedule (this, p.size / rxSpeed, RX_END,
+						null);
+				return;
+			}
+			drop (rxQueue.poll(), RX_DROPPED);
+		}
 	}
 	
-	// Finish receiving a packet, pass it to the node
-	private void rxEnd (Packet p)
+	// Finish receiving the packet at the head of the queue, pass it to
+	// the node
+	private void rxEnd()
 	{
-		if (LOG) log ("finished receiving " + p);
+		Packet p = rxQueue.peek();
+		if (LOG) trace (RX_FINISHED).add (p).end();
 		node.handlePacket (p);
-		rxQueueSize -= p.size;
 		rxQueue.poll();
+		p.release();
 		// If there's another packet waiting, start to receive it
-		if (!rxQueue.isEmpty()) rxStart (rxQueue.peek());
+		rxStart();
 	}
 	
-	// Start transmitting a packet
-	private void txStart (Packet p)
+	// Start transmitting the packet at the head of the queue, unless the
+	// discipline drops it, in which case try the next one
+	private void txStart()
 	{
-		if (LOG) log ("starting to transmit " + p);
-		// Delay depends on tx speed
-		Event.schedule (this, p.size / txSpeed, TX_END, p);
+		long now = Event.ticks();
+		while (!txQueue.isEmpty()) {
+			Packet p = txQueue.peek();
+			long waited = now - txQueue.time (0);
+			int behind = txQueue.bytes() - p.size;
+			if (txDiscipline.keep (waited, behind, now)) {
+				if (LOG) trace (TX_START).add (p).end();
+				transmitted (waited);
+				// Delay depends on tx speed
+				Event.schedule (this, p.size / txSpeed, TX_END,
+						null);
+				return;
+			}
+			drop (txQueue.poll(), TX_DROPPED);
+		}
 	}
 	
-	// Finish transmitting a packet
-	private void txEnd (Packet p)
+	// Finish transmitting the packet at the head of the queue
+	private void txEnd()
 	{
-		if (LOG) log ("finished transmitting " + p);
-		Network.deliver (p);
-		txQueueSize -= p.size;
-		txQueue.poll();
+		Packet p = txQueue.poll();
+		if (LOG) trace (TX_FINISHED).add (p).end();
+		network.deliver (p); // May recycle the packet
 		// If there's another packet waiting, start to transmit it
-		if (!txQueue.isEmpty()) txStart (txQueue.peek());
+		txStart();
 	}
 	
-	private void log (String message)
+	// Start a log record about this interface
+	private Trace trace (int kind)
 	{
-		Event.log (address + " " + message);
+		return Event.trace (kind, address, -1, -1);
 	}
 	
 	// EventTarget interface
 	public void handleEvent (int code, Object data)
 	{
 		if (code == RX_QUEUE) rxQueueAdd ((Packet) data);
-		else if (code == RX_END) rxEnd ((Packet) data);
-		else if (code == TX_END) txEnd ((Packet) data);
+		else if (code == RX_END) rxEnd();
+		else if (code == TX_END) txEnd();
 	}
 	
 	public final static int RX_QUEUE = Event.code();
 	private final static int RX_END = Event.code();
 	private final static int TX_END = Event.code();
+	
+	// Log records
+	private final static int TX_LOST
+		= Trace.kind ("no room in txQueue, {} lost");
+	private final static int TX_DROPPED
+		= Trace.kind ("{} dropped from txQueue");
+	private final static int TX_QUEUE = Trace.kind ("{} bytes in txQueue");
+	private final static int RX_LOST
+		= Trace.kind ("no room in rxQueue, {} lost");
+	private final static int RX_DROPPED
+		= Trace.kind ("{} dropped from rxQueue");
+	private final static int RX_QUEUE_SIZE
+		= Trace.kind ("{} bytes in rxQueue");
+	private final static int RX_START = Trace.kind ("starting to receive {}");
+	private final static int RX_FINISHED
+		= Trace.kind ("finished receiving {}");
+	private final static int TX_START
+		= Trace.kind ("starting to transmit {}");
+	private final static int TX_FINISHED
+		= Trace.kind ("finished transmitting {}");
 }
@@ -7,34 +7,28 @@ import sim.messages.*;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedList;
+import java.util.ArrayDeque;
 
-public class Node implements EventTarget
+public class Node implements PrimitiveEventTarget
 {
-	public final static boolean LOG = false;
+	private final static long serialVersionUID = 1L;
 	
-	// Retransmission/coalescing timer
-	public final static double TICK = 0.1; // Timer granularity, seconds
+	public final static boolean LOG = false;
 	
 	// Flow control
-	public static boolean useTokens = false;
-	public static boolean useBackoff = false;
-	public static boolean useThrottle = false;
 	public final static int FLOW_TOKENS = 50; // Shared by all peers
 	public final static double DELAY_DECAY = 0.99; // Exp moving average
 	public final static double MAX_DELAY = 2.0; // Reject all, seconds
 	public final static double HIGH_DELAY = 1.0; // Reject some, seconds
 	
-	// Statistics (for requests and inserts combined)
-	public static int succeededLocally = 0;
-	public static int succeededRemotely = 0;
-	public static int failed = 0;
-	
+	public final int lane; // Lane of this node's events
+	public final Rng random; // This node's random numbers
+	public boolean useTokens, useBackoff, useThrottle; // Flow control
 	public double location; // Routing location
 	public NetworkInterface net;
 	private HashMap<Integer,Peer> peers; // Look up a peer by its address
-	private HashSet<Integer> recentlySeenRequests; // Request IDs
+	private SharedLinkedSet<Integer> recentlySeenRequests; // Request IDs
 	private HashMap<Integer,MessageHandler> messageHandlers; // By ID
 	private LruCache<Integer> chkStore;
 	private LruCache<Integer> chkCache;
@@ -45,24 +39,32 @@ public class Node implements EventTarget
 	private boolean decrementMaxHtl = false;
 	private boolean decrementMinHtl = false;
 	public TokenBucket bandwidth; // Bandwidth limiter
-	private boolean timerRunning = false; // Coalescing/retransmission timer
 	private int spareTokens = FLOW_TOKENS; // Tokens not allocated to a peer
 	private double delay = 0.0; // Delay caused by congestion or b/w limiter
 	private LinkedList<Search> searchQueue;
 	private SearchThrottle searchThrottle;
 	private HashSet<Peer> availablePeers; // Peers with outgoing tokens
+	private ArrayDeque<Peer> bandwidthQueue; // Peers waiting for bandwidth
+	private long bandwidthWakeup = -1; // Event ID, or -1 if not waiting
 	
 	public Node (double txSpeed, double rxSpeed)
 	{
-		this (Math.random(), txSpeed, rxSpeed);
+		this (Simulation.current().random().nextDouble(),
+			txSpeed, rxSpeed);
 	}
 	
 	public Node (double location, double txSpeed, double rxSpeed)
 	{
+		Simulation sim = Simulation.current();
+		lane = sim.newLane();
+		random = sim.newStream();
+		useTokens = sim.useTokens;
+		useBackoff = sim.useBackoff;
+		useThrottle = sim.useThrottle;
 		this.location = location;
 		net = new NetworkInterface (this, txSpeed, rxSpeed);
 		peers = new HashMap<Integer,Peer>();
-		recentlySeenRequests = new HashSet<Integer>();
+		recentlySeenRequests = new SharedLinkedSet<Integer>();
 		messageHandlers = new HashMap<Integer,MessageHandler>();
 		chkStore = new LruCache<Integer> (16000);
 		chkCache = new LruCache<Integer> (16000);
@@ -70,13 +72,14 @@ public class Node implements EventTarget
 		sskCache = new LruMap<Integer,Integer> (16000);
 		pubKeyStore = new LruCache<Integer> (16000);
 		pubKeyCache = new LruCache<Integer> (16000);
-		if (Math.random() < 0.5) decrementMaxHtl = true;
-		if (Math.random() < 0.25) decrementMinHtl = true;
+		if (random.nextDouble() < 0.5) decrementMaxHtl = true;
+		if (random.nextDouble() < 0.25) decrementMinHtl = true;
 		bandwidth = new TokenBucket (40000, 80000);
+		bandwidthQueue = new ArrayDeque<Peer>();
 		searchQueue = new LinkedList<Search>();
 		if (useTokens) {
 			// Allocate flow control tokens after a short delay
-			Event.schedule (this, Math.random() * 0.1,
+			Event.schedule (lane, this, random.nextDouble() * 0.1,
 					ALLOCATE_TOKENS, null);
 			availablePeers = new HashSet<Peer>();
 		}
@@ -90,6 +93,7 @@ public class Node implements EventTarget
 		if (peers.containsKey (n.net.address)) return false;
 		Peer p = new Peer (this, n.net.address, n.location, latency);
 		peers.put (n.net.address, p);
+		Simulation.current().network.addLink (Event.toTicks (latency));
 		return true;
 	}
 	
@@ -99,6 +103,37 @@ public class Node implements EventTarget
 		else return false;
 	}
 	
+	// Change the flow control settings of a running node. Searches that
+	// are already in progress when tokens are switched on will return
+	// tokens they didn't take, so allow them to finish before measuring.
+	public void setFlowControl (boolean tokens, boolean backoff,
+					boolean throttle)
+	{
+		if (tokens && availablePeers == null) {
+			Event.schedule (lane, this, random.nextDouble() * 0.1,
+					ALLOCATE_TOKENS, null);
+			availablePeers = new HashSet<Peer>();
+		}
+		if (throttle && searchThrottle == null)
+			searchThrottle = new SearchThrottle();
+		useTokens = tokens;
+		useBackoff = backoff;
+		useThrottle = throttle;
+	}
+	
+	// Share the stores, caches and seen requests with copies of the
+	// simulation made by Fork, which will copy everything else
+	public void freeze()
+	{
+		recentlySeenRequests.freeze();
+		chkStore.freeze();
+		chkCache.freeze();
+		sskStore.freeze();
+		sskCache.freeze();
+		pubKeyStore.freeze();
+		pubKeyCache.freeze();
+	}
+	
 	// Calculate the circular distance between two locations
 	public static double distance (double a, double b)
 	{
@@ -143,7 +178,7 @@ public class Node implements EventTarget
 		if (delay > MAX_DELAY) return true;
 		if (delay > HIGH_DELAY) {
 			double p = (delay-HIGH_DELAY) / (MAX_DELAY-HIGH_DELAY);
-			if (Math.random() < p) return true;
+			if (random.nextDouble() < p) return true;
 		}
 		return false;
 	}
@@ -164,7 +199,7 @@ public class Node implements EventTarget
 	{
 		if (recentlySeenRequests.add (id)) return false;
 		
-		if (LOG) log ("rejecting recently seen search " + id);
+		if (LOG) log ("rejecting recently seen search " + id, id);
 		prev.sendMessage (new RejectedLoop (id));
 		if (useTokens) allocateToken (prev);
 		// Don't forward the same search back to prev
@@ -237,21 +272,61 @@ public class Node implements EventTarget
 	{
 		// Update the bandwidth limiter
 		bandwidth.remove (p.size);
-		// Update the average bandwidth delay
-		if (p.messages != null) {
-			double now = Event.time();
-			for (Message m : p.messages) {
-				if (LOG) log ("sending " + m + " to " + p.dest);
-				double d = now - m.deadline;
-				delay *= DELAY_DECAY;
-				delay += d * (1.0 - DELAY_DECAY);
-			}
-			if (LOG) log ("average message delay " + delay);
+		if (LOG && p.messages != null) {
+			for (Message m : p.messages)
+				trace (SENDING, m.id).add (m)
+					.add (p.dest).end();
+			trace (AVERAGE_DELAY, -1).add (delay).end();
 		}
 		// Send the packet
 		net.sendPacket (p);
 	}
 	
+	// Called by Peer when a message is packed into a packet, d seconds
+	// after its coalescing deadline - update the average bandwidth delay
+	public void messageDelayed (double d)
+	{
+		delay *= DELAY_DECAY;
+		delay += d * (1.0 - DELAY_DECAY);
+	}
+	
+	// Called by Peer when it has a packet waiting for bandwidth - peers
+	// are served in the order they start waiting, and each wakeup lets
+	// one peer send, so busy peers don't all poll the limiter
+	public void waitForBandwidth (Peer p)
+	{
+		p.waitingForBandwidth = true;
+		bandwidthQueue.add (p);
+		if (bandwidthWakeup == -1) scheduleBandwidth();
+	}
+	
+	// Wake up when the first peer in the queue has enough bandwidth
+	private void scheduleBandwidth()
+	{
+		while (!bandwidthQueue.isEmpty()) {
+			int need = bandwidthQueue.peek().bandwidthNeeded();
+			if (need > 0) {
+				double wait = Math.max (bandwidth.delay (need),
+							Peer.MIN_WAIT);
+				bandwidthWakeup = Event.schedule (lane, this, wait,
+							BANDWIDTH, null);
+				return;
+			}
+			// The peer no longer needs bandwidth
+			bandwidthQueue.poll().waitingForBandwidth = false;
+		}
+		bandwidthWakeup = -1;
+	}
+	
+	// Event callback - let the first peer in the queue send
+	private void bandwidthAvailable()
+	{
+		Peer p = bandwidthQueue.poll();
+		p.waitingForBandwidth = false;
+		p.bandwidthAvailable(); // Rejoins the queue if it's still waiting
+		scheduleBandwidth();
+	}
+	
 	// Called by Peer to retransmit a packet
 	public void resendPacket (Packet p)
 	{
@@ -271,10 +346,21 @@ public class Node implements EventTarget
 		else peer.handlePacket (p);
 	}
 	
+	// Called when a block transfer modelled as a flow arrives (see Flows)
+	private void handleFlow (Flow f)
+	{
+		Peer peer = peers.get (f.src.net.address);
+		if (peer == null) {
+			if (LOG) log ("received flow from unknown peer");
+		}
+		else peer.handleFlow (f);
+	}
+	
 	// Called by Peer
 	public void handleMessage (Message m, Peer src)
 	{
-		if (src != null && LOG) log ("received " + m + " from " + src);
+		if (src != null && LOG)
+			trace (RECEIVED, m.id).add (m).add (src).end();
 		if (m instanceof Token)
 			handleToken ((Token) m, src);
 		else if (m instanceof ChkRequest)
@@ -288,7 +374,8 @@ public class Node implements EventTarget
 		else {
 			MessageHandler mh = messageHandlers.get (m.id);
 			if (mh == null) {
-				if (LOG) log ("no message handler for " + m);
+				if (LOG)
+					log ("no message handler for " + m, m.id);
 			}
 			else mh.handleMessage (m, src);
 		}
@@ -307,15 +394,15 @@ public class Node implements EventTarget
 		if (rejectIfRecentlySeen (prev, r.id)) return;
 		// Accept the search
 		if (prev != null) {
-			if (LOG) log ("accepting " + r);
+			if (LOG) log ("accepting " + r, r.id);
 			prev.sendMessage (new Accepted (r.id));
 		}
 		// If the data is in the store, return it
 		if (chkStore.get (r.key)) {
 			if (LOG) log ("key " + r.key + " found in CHK store");
 			if (prev == null) {
-				if (LOG) log (r + " succeeded locally");
-				succeededLocally++;
+				if (LOG) log (r + " succeeded locally", r.id);
+				Simulation.current().succeededLocally++;
 			}
 			else {
 				prev.sendMessage (new ChkDataFound (r.id));
@@ -330,8 +417,8 @@ public class Node implements EventTarget
 		if (chkCache.get (r.key)) {
 			if (LOG) log ("key " + r.key + " found in CHK cache");
 			if (prev == null) {
-				if (LOG) log (r + " succeeded locally");
-				succeededLocally++;
+				if (LOG) log (r + " succeeded locally", r.id);
+				Simulation.current().succeededLocally++;
 			}
 			else {
 				prev.sendMessage (new ChkDataFound (r.id));
@@ -356,7 +443,7 @@ public class Node implements EventTarget
 		if (rejectIfRecentlySeen (prev, i.id)) return;
 		// Accept the search
 		if (prev != null) {
-			if (LOG) log ("accepting " + i);
+			if (LOG) log ("accepting " + i, i.id);
 			prev.sendMessage (new Accepted (i.id));
 		}
 		// Store the insert handler and wait for a DataInsert
@@ -379,7 +466,7 @@ public class Node implements EventTarget
 		}
 		// Accept the search
 		if (prev != null) {
-			if (LOG) log ("accepting " + r);
+			if (LOG) log ("accepting " + r, r.id);
 			prev.sendMessage (new Accepted (r.id));
 		}
 		// If the data is in the store, return it
@@ -387,8 +474,8 @@ public class Node implements EventTarget
 		if (pub && data != null) {
 			if (LOG) log ("key " + r.key + " found in SSK store");
 			if (prev == null) {
-				if (LOG) log (r + " succeeded locally");
-				succeededLocally++;
+				if (LOG) log (r + " succeeded locally", r.id);
+				Simulation.current().succeededLocally++;
 			}
 			else {
 				prev.sendMessage (new SskDataFound (r.id,data));
@@ -405,8 +492,8 @@ public class Node implements EventTarget
 		if (pub && data != null) {
 			if (LOG) log ("key " + r.key + " found in SSK cache");
 			if (prev == null) {
-				if (LOG) log (r + " succeeded locally");
-				succeededLocally++;
+				if (LOG) log (r + " succeeded locally", r.id);
+				Simulation.current().succeededLocally++;
 			}
 			else {
 				prev.sendMessage (new SskDataFound (r.id,data));
@@ -438,7 +525,7 @@ public class Node implements EventTarget
 		}
 		// Accept the search
 		if (prev != null) {
-			if (LOG) log ("accepting " + i);
+			if (LOG) log ("accepting " + i, i.id);
 			prev.sendMessage (new SskAccepted (i.id, !pub));
 		}
 		// Store the insert handler and possibly wait for the pub key
@@ -461,10 +548,11 @@ public class Node implements EventTarget
 	{
 		MessageHandler mh = messageHandlers.remove (id);
 		if (mh == null) {
-			if (LOG) log ("no message handler to remove for " + id);
+			if (LOG)
+				log ("no message handler to remove for "+id, id);
 		}
 		else {
-			if (LOG) log ("removing message handler for " + id);
+			if (LOG) log ("removing message handler for " + id, id);
 			if (useTokens) allocateToken (mh.prev);
 		}
 	}
@@ -503,35 +591,25 @@ public class Node implements EventTarget
 	public ArrayList<Peer> peers()
 	{
 		ArrayList<Peer> copy = new ArrayList<Peer> (peers.values());
-		Collections.shuffle (copy);
+		random.shuffle (copy);
 		return copy;
 	}
 	
-	// Called by Peer to start the retransmission/coalescing timer
-	public void startTimer()
+	public void log (String message)
 	{
-		if (timerRunning) return;
-		timerRunning = true;
-		if (LOG) log ("starting timer");
-		Event.schedule (this, TICK, TIMER, null);
+		trace (Trace.TEXT, -1).add (message).end();
 	}
 	
-	// Event callback - check retransmission/coalescing deadlines
-	private void timer()
+	// Log a message about the search with the given ID
+	public void log (String message, int id)
 	{
-		boolean stopTimer = true;
-		// Check the peers in a random order for fair bandwidth sharing
-		for (Peer p : peers()) if (p.timer()) stopTimer = false;
-		if (stopTimer && timerRunning) {
-			timerRunning = false;
-			if (LOG) log ("stopping timer");
-		}
-		else Event.schedule (this, TICK, TIMER, null);
+		trace (Trace.TEXT, id).add (message).end();
 	}
 	
-	public void log (String message)
+	// Start a log record about this node and the given search, if any
+	private Trace trace (int kind, int id)
 	{
-		Event.log (net.address + " " + message);
+		return Event.trace (kind, net.address, -1, id);
 	}
 	
 	// Add a search to the queue
@@ -601,28 +679,28 @@ public class Node implements EventTarget
 	public void generateChkRequest (int key)
 	{
 		ChkRequest cr = new ChkRequest (key, location);
-		if (LOG) log ("generating " + cr);
+		if (LOG) log ("generating " + cr, cr.id);
 		addToSearchQueue (cr);
 	}
 	
 	public void generateChkInsert (int key, Client c)
 	{
 		ChkInsert ci = new ChkInsert (key, location, c);
-		if (LOG) log ("generating " + ci);
+		if (LOG) log ("generating " + ci, ci.id);
 		addToSearchQueue (ci);
 	}
 	
 	public void generateSskRequest (int key)
 	{
 		SskRequest sr = new SskRequest (key, location, true);
-		if (LOG) log ("generating " + sr);
+		if (LOG) log ("generating " + sr, sr.id);
 		addToSearchQueue (sr);
 	}
 	
 	public void generateSskInsert (int key, int value, Client c)
 	{
 		SskInsert si = new SskInsert (key, value, location, c);
-		if (LOG) log ("generating " + si);
+		if (LOG) log ("generating " + si, si.id);
 		addToSearchQueue (si);
 	}
 	
@@ -637,25 +715,29 @@ public class Node implements EventTarget
 		}
 	}
 	
-	// EventTarget interface
+	// PrimitiveEventTarget interface
+	
+	// Searches are scheduled with their keys as primitive payloads
+	public void handleEvent (int code, long value)
+	{
+		int key = (int) value;
+		if (code == REQUEST_CHK) generateChkRequest (key);
+		else if (code == INSERT_CHK) generateChkInsert (key, null);
+		else if (code == REQUEST_SSK) generateSskRequest (key);
+		else if (code == INSERT_SSK) generateSskInsert (key, 0, null);
+		else if (code == SSK_COLLISION) generateSskInsert (key, 1, null);
+	}
+	
 	public void handleEvent (int code, Object data)
 	{
-		if (code == REQUEST_CHK)
-			generateChkRequest ((Integer) data);
-		else if (code == INSERT_CHK)
-			generateChkInsert ((Integer) data, null);
-		else if (code == REQUEST_SSK)
-			generateSskRequest ((Integer) data);
-		else if (code == INSERT_SSK)
-			generateSskInsert ((Integer) data, 0, null);
-		else if (code == SSK_COLLISION)
-			generateSskInsert ((Integer) data, 1, null);
-		else if (code == ALLOCATE_TOKENS)
+		if (code == ALLOCATE_TOKENS)
 			allocateTokens();
 		else if (code == SEND_SEARCH)
 			sendSearch();
-		else if (code == TIMER)
-			timer();
+		else if (code == BANDWIDTH)
+			bandwidthAvailable();
+		else if (code == FLOW_ARRIVED)
+			handleFlow ((Flow) data);
 	}
 	
 	public final static int REQUEST_CHK = Event.code();
@@ -665,5 +747,12 @@ public class Node implements EventTarget
 	public final static int SSK_COLLISION = Event.code();
 	private final static int ALLOCATE_TOKENS = Event.code();
 	private final static int SEND_SEARCH = Event.code();
-	private final static int TIMER = Event.code();
+	private final static int BANDWIDTH = Event.code();
+	final static int FLOW_ARRIVED = Event.code();
+	
+	// Log records
+	private final static int SENDING = Trace.kind ("sending {} to {}");
+	private final static int AVERAGE_DELAY
+		= Trace.kind ("average message delay {}");
+	private final static int RECEIVED = Trace.kind ("received {} from {}");
 }
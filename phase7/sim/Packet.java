@@ -1,27 +1,53 @@
 // This software has been placed in the public domain by its author
 
 // A low-level packet (as opposed to a high-level message)
+//
+// Packets are recycled, so a run in its steady state hardly allocates
+// any. A packet can be held by the sender's retransmission buffer and by
+// any number of copies in flight, each of which holds a reference (see
+// retain() and release()). When the last reference is dropped - the
+// packet has been acked and every copy has been received or lost - it
+// goes back to the current simulation's pool. The count is atomic because
+// in a parallel run the sender and receiver may be on different threads.
 
 package sim;
 import sim.messages.Message;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.Serializable;
 
-class Packet
+class Packet implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static int HEADER_SIZE = 60; // Including IP & UDP headers
 	public final static int MAX_SIZE = 1450; // MTU including headers
 	public final static int SENSIBLE_PAYLOAD = 1000; // Coalescing
+	public final static int MAX_SACK_RANGES = 4; // Selective acks
+	public final static int SACK_SIZE = 4; // Bytes, plus 8 for each range
 	
-	public final int src, dest; // Network addresses
+	public int src, dest; // Network addresses
 	public int size = HEADER_SIZE; // Size in bytes, including headers
 	public int seq = -1; // Data sequence number (-1 if no data)
 	public int ack = -1; // Ack sequence number (-1 if no ack)
-	public ArrayList<Message> messages = null;
+	public ArrayList<Message> messages = null; // Null if no data
+	
+	// Selective acks: every sequence number below the base has been
+	// received, and so have the ranges, as pairs of the first sequence
+	// number and the one after the last
+	public int sackBase = -1; // -1 if no selective ack
+	public int sackRanges = 0;
+	public int[] sack = null; // Kept when the packet's reused
 	
 	public double sent; // Time at which the packet was (re) transmitted
-	public double latency; // Link latency, stored here for convenience
+	public long latency; // Link latency in ticks, stored for convenience
+	public Rng random; // The link's random numbers, used by the network
+	public LinkModel link; // The link's impairments, or null for none
+	
+	private ArrayList<Message> list = null; // Kept when the packet's reused
+	private final AtomicInteger refs = new AtomicInteger();
 	
-	public Packet (int src, int dest, double latency, int ack)
+	public Packet (int src, int dest, long latency, int ack)
 	{
 		this.src = src;
 		this.dest = dest;
@@ -29,17 +55,57 @@ class Packet
 		this.ack = ack;
 	}
 	
+	// Return a recycled packet if there is one, otherwise a new one
+	public static Packet obtain (int src, int dest, long latency, int ack)
+	{
+		Packet p = Simulation.current().recycledPacket();
+		if (p == null) return new Packet (src, dest, latency, ack);
+		p.src = src;
+		p.dest = dest;
+		p.latency = latency;
+		p.ack = ack;
+		return p;
+	}
+	
 	public void addMessage (Message m)
 	{
-		if (messages == null) messages = new ArrayList<Message>();
+		if (messages == null) {
+			if (list == null) list = new ArrayList<Message>();
+			messages = list;
+		}
 		messages.add (m);
 		size += m.size();
 	}
 	
-	public void addMessages (DeadlineQueue q, int maxSize)
+	// Add a selective ack, with ranges from ReceiveWindow.ranges()
+	public void addSack (int base, int[] ranges, int count)
+	{
+		if (sack == null) sack = new int[MAX_SACK_RANGES * 2];
+		sackBase = base;
+		sackRanges = count;
+		System.arraycopy (ranges, 0, sack, 0, count * 2);
+		size += SACK_SIZE + count * 8;
+	}
+	
+	// Hold a reference to the packet
+	public void retain()
+	{
+		refs.incrementAndGet();
+	}
+	
+	// Drop a reference, recycling the packet if it was the last one
+	public void release()
 	{
-		while (q.size > 0 && size + q.headSize() <= maxSize)
-			addMessage (q.pop());
+		if (refs.decrementAndGet() != 0) return;
+		size = HEADER_SIZE;
+		seq = ack = -1;
+		sackBase = -1;
+		sackRanges = 0;
+		if (messages != null) messages.clear();
+		messages = null;
+		random = null;
+		link = null;
+		Simulation.current().recyclePacket (this);
 	}
 	
 	public String toString()
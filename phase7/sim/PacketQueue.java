@@ -0,0 +1,108 @@
+// This software has been placed in the public domain by its author
+
+// A queue of packets in a circular buffer, keeping track of the total
+// size of the packets in bytes and, optionally, when each packet was
+// queued. Packets can also be read and removed by their position in the
+// queue, counting from the head.
+
+package sim;
+import java.io.Serializable;
+
+class PacketQueue implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private Packet[] packets = new Packet[16]; // Circular buffer
+	private long[] times = new long[16]; // When each packet was queued
+	private int head = 0, count = 0;
+	private int bytes = 0; // Total size of the packets
+	
+	public void add (Packet p)
+	{
+		add (p, 0L);
+	}
+	
+	// Add a packet along with the time it was queued, in ticks
+	public void add (Packet p, long time)
+	{
+		if (count == packets.length) grow();
+		int tail = (head + count) & (packets.length - 1);
+		packets[tail] = p;
+		times[tail] = time;
+		count++;
+		bytes += p.size;
+	}
+	
+	public int size()
+	{
+		return count;
+	}
+	
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+	
+	// Return the total size of the packets in bytes
+	public int bytes()
+	{
+		return bytes;
+	}
+	
+	// Return the packet at the head of the queue, or null if it's empty
+	public Packet peek()
+	{
+		if (count == 0) return null;
+		return packets[head];
+	}
+	
+	// Remove and return the packet at the head, or null if it's empty
+	public Packet poll()
+	{
+		if (count == 0) return null;
+		return remove (0);
+	}
+	
+	// Return the packet at the given position
+	public Packet get (int i)
+	{
+		return packets[(head + i) & (packets.length - 1)];
+	}
+	
+	// Return the time the packet at the given position was queued
+	public long time (int i)
+	{
+		return times[(head + i) & (packets.length - 1)];
+	}
+	
+	// Remove and return the packet at the given position, moving the
+	// packets in front of it back by one
+	public Packet remove (int i)
+	{
+		int mask = packets.length - 1;
+		Packet p = get (i);
+		for (int j = i; j > 0; j--) {
+			packets[(head + j) & mask] = packets[(head + j - 1) & mask];
+			times[(head + j) & mask] = times[(head + j - 1) & mask];
+		}
+		packets[head] = null;
+		head = (head + 1) & mask;
+		count--;
+		bytes -= p.size;
+		return p;
+	}
+	
+	// Double the capacity, unwrapping the buffer
+	private void grow()
+	{
+		Packet[] p = new Packet[packets.length * 2];
+		long[] t = new long[packets.length * 2];
+		for (int i = 0; i < count; i++) {
+			p[i] = get (i);
+			t[i] = time (i);
+		}
+		packets = p;
+		times = t;
+		head = 0;
+	}
+}
@@ -0,0 +1,69 @@
+// This software has been placed in the public domain by its author
+
+// The packets queued by a network interface that sends its packets as
+// trains (see NetworkInterface), kept as the times they finish
+// transmitting and their sizes. The packets themselves have already been
+// handed to the network, so only their sizes are needed to keep track of
+// how full the queue is.
+
+package sim;
+import java.io.Serializable;
+
+class PacketTrain implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private long[] finish = new long[16]; // Circular buffer, ticks
+	private int[] sizes = new int[16]; // Bytes
+	private int head = 0, count = 0;
+	private int bytes = 0; // Total size of the packets
+	private long last = 0; // When the last packet finishes, ticks
+	
+	// Add a packet that finishes transmitting at the given time
+	public void add (long time, int size)
+	{
+		if (count == sizes.length) grow();
+		int tail = (head + count) & (sizes.length - 1);
+		finish[tail] = time;
+		sizes[tail] = size;
+		count++;
+		bytes += size;
+		last = time;
+	}
+	
+	// Remove the packets that have finished transmitting by the given time
+	public void expire (long now)
+	{
+		while (count > 0 && finish[head] <= now) {
+			bytes -= sizes[head];
+			head = (head + 1) & (sizes.length - 1);
+			count--;
+		}
+	}
+	
+	// Return the total size of the packets in bytes
+	public int bytes()
+	{
+		return bytes;
+	}
+	
+	// Return the time the last packet finishes, which may have passed
+	public long finish()
+	{
+		return last;
+	}
+	
+	// Double the capacity, unwrapping the buffer
+	private void grow()
+	{
+		long[] f = new long[sizes.length * 2];
+		int[] s = new int[sizes.length * 2];
+		for (int i = 0; i < count; i++) {
+			f[i] = finish[(head + i) & (sizes.length - 1)];
+			s[i] = sizes[(head + i) & (sizes.length - 1)];
+		}
+		finish = f;
+		sizes = s;
+		head = 0;
+	}
+}
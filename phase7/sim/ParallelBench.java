@@ -0,0 +1,48 @@
+// This software has been placed in the public domain by its author
+
+// Measure the speedup of parallel runs over a sequential run of the same
+// network size and load - every run uses the same seed, so the results
+// should be identical
+
+package sim;
+
+class ParallelBench
+{
+	private final static long SEED = 1;
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: ParallelBench <nodes> <load> <duration> <threads> ...");
+		System.exit (1);
+	}
+	
+	public static void main (String[] args)
+	{
+		if (args.length < 4) usage();
+		int nodes = Integer.parseInt (args[0]);
+		double load = Double.parseDouble (args[1]);
+		double duration = Double.parseDouble (args[2]);
+		
+		// Warm up the JIT with a short sequential run
+		new Sim (nodes).run (load / 60.0, duration / 10.0);
+		double sequential = 0.0;
+		for (int i = 3; i < args.length; i++) {
+			int threads = Integer.parseInt (args[i]);
+			Sim s = new Sim (nodes);
+			s.simulation.setSeed (SEED);
+			s.simulation.threads = threads;
+			long start = System.nanoTime();
+			s.run (load / 60.0, duration);
+			double secs = (System.nanoTime() - start) * 1e-9;
+			if (threads == 1) sequential = secs;
+			System.out.println (threads + " threads "
+				+ s.simulation.dispatched + " events "
+				+ secs + " seconds "
+				+ (long) (s.simulation.dispatched / secs)
+				+ " events/second"
+				+ (sequential > 0.0 ? ", speedup "
+					+ sequential / secs : "")
+				+ ", results " + s.results());
+		}
+	}
+}
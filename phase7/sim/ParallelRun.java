@@ -0,0 +1,237 @@
+// This software has been placed in the public domain by its author
+
+// Conservative parallel execution of a simulation. The lanes (nodes) are
+// divided into contiguous blocks, one per partition, and each partition
+// has its own clock and event queue and runs on its own thread. An event
+// for a node in another partition has to cross a link, so it can't take
+// effect sooner than the lookahead (the shortest link latency) after it's
+// scheduled. If the earliest pending event is at time T, each partition
+// can safely process every event before T + lookahead without hearing
+// from the others. The partitions process that window in parallel, pick
+// up the events they've sent each other at the start of the next window,
+// and so on. Events in lane 0, which don't belong to any node, are
+// dispatched by the coordinating thread between windows.
+//
+// Since IDs are allocated by lane, each node sees the same sequence of
+// events as it would in a sequential run, as long as its random numbers
+// don't depend on other nodes either.
+
+package sim;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+class ParallelRun
+{
+	private final Simulation main; // Dispatches the events in lane 0
+	private final Simulation[] partitions;
+	final int[] partitionOf; // Partition of each lane, -1 for lane 0
+	private final long lookahead; // Ticks
+	
+	// Events sent between partitions during even and odd windows
+	private final EventBuffer[][][] mail; // [parity][from][to]
+	private int parity = 0;
+	private final long[] sent; // Earliest event each partition has sent
+	private final long[] earliest; // Earliest event for each partition
+	
+	// The current window contains the events before this time and ID
+	private long limitTime;
+	private long limitId;
+	
+	private final CyclicBarrier start, end; // Window boundaries
+	private volatile boolean finished = false;
+	private volatile Throwable failure = null;
+	public long windows = 0; // Windows processed
+	
+	ParallelRun (Simulation main, int threads, int lanes)
+	{
+		this.main = main;
+		lookahead = main.network.lookahead();
+		if (lookahead <= 0)
+			throw new IllegalStateException ("no lookahead");
+		int parts = Math.max (1, Math.min (threads, lanes - 1));
+		partitionOf = new int[lanes];
+		partitionOf[0] = -1;
+		for (int l = 1; l < lanes; l++)
+			partitionOf[l] = (int) ((long) (l - 1) * parts / (lanes - 1));
+		partitions = new Simulation[parts];
+		for (int i = 0; i < parts; i++)
+			partitions[i] = new Simulation (main, this, partitionOf, i);
+		mail = new EventBuffer[2][parts][parts];
+		for (int p = 0; p < 2; p++)
+			for (int i = 0; i < parts; i++)
+				for (int j = 0; j < parts; j++)
+					mail[p][i][j] = new EventBuffer();
+		sent = new long[parts];
+		earliest = new long[parts];
+		Arrays.fill (earliest, Long.MAX_VALUE);
+		start = new CyclicBarrier (parts + 1);
+		end = new CyclicBarrier (parts + 1);
+	}
+	
+	// Called by a simulation to pass an event to another partition
+	void send (Simulation from, long time, long id, int lane,
+			EventTarget target, int code, Object data, long value)
+	{
+		int to = partitionOf[lane];
+		if (from == main) {
+			// Between windows, so the partitions are idle
+			partitions[to].enqueue (time, id, lane, target, code,
+						data, value);
+			if (time < earliest[to]) earliest[to] = time;
+		}
+		else if (to == -1)
+			throw new IllegalStateException ("node scheduled event in lane 0");
+		else if (time < from.ticks() + lookahead)
+			throw new IllegalStateException ("event sooner than lookahead");
+		else {
+			mail[parity][from.partition][to].add
+				(time, id, lane, target, code, data, value);
+			if (time < sent[from.partition]) sent[from.partition] = time;
+		}
+	}
+	
+	// Run until the duration expires or there are no more events
+	void run()
+	{
+		long duration = main.duration;
+		Thread[] threads = new Thread[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			final int index = i;
+			threads[i] = new Thread ("partition " + i) {
+				public void run()
+				{
+					work (index);
+				}
+			};
+			threads[i].setDaemon (true);
+			threads[i].start();
+		}
+		try {
+			while (true) {
+				long t = Long.MAX_VALUE;
+				for (long e : earliest) t = Math.min (t, e);
+				// The window ends at the lookahead horizon, the end of
+				// the run or the next event in lane 0, whichever is first
+				if (t > Long.MAX_VALUE - lookahead)
+					limitTime = Long.MAX_VALUE;
+				else limitTime = t + lookahead;
+				limitId = Long.MIN_VALUE;
+				if (duration < limitTime) {
+					limitTime = duration;
+					limitId = Long.MAX_VALUE;
+				}
+				boolean global = main.ready (limitTime, limitId);
+				if (global) {
+					limitTime = main.headTime();
+					limitId = main.headId();
+				}
+				if (t <= limitTime) window();
+				if (global) main.dispatch();
+				else if (limitId == Long.MAX_VALUE
+				|| t == Long.MAX_VALUE) break;
+			}
+		}
+		finally {
+			// Release the workers
+			finished = true;
+			await (start);
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				}
+				catch (InterruptedException e) {
+					throw new RuntimeException (e);
+				}
+			}
+		}
+		// Stop the clock and hand the pending events back to main, so
+		// the run can be continued or saved
+		if (duration < Long.MAX_VALUE) main.setTime (duration);
+		// Handing the events back isn't a peak of the run
+		int peak = main.peakQueueSize;
+		for (EventBuffer[][] m : mail)
+			for (EventBuffer[] from : m)
+				for (EventBuffer b : from) b.moveTo (main);
+		for (Simulation p : partitions) {
+			p.moveEventsTo (main);
+			p.flushTrace();
+			main.succeededLocally += p.succeededLocally;
+			main.succeededRemotely += p.succeededRemotely;
+			main.failed += p.failed;
+			main.searchLatency += p.searchLatency;
+			main.retransmissions += p.retransmissions;
+			main.dropped += p.dropped;
+			main.ackOnly += p.ackOnly;
+			main.duplicates += p.duplicates;
+			main.delivered += p.delivered;
+			main.transmitted += p.transmitted;
+			main.queueDelay += p.queueDelay;
+			main.dispatched += p.dispatched;
+			// The partitions peak at different times
+			peak = Math.max (peak, p.peakQueueSize);
+			main.cancelled += p.cancelled;
+		}
+		main.peakQueueSize = peak;
+	}
+	
+	// Run one window on all the partitions
+	private void window()
+	{
+		windows++;
+		await (start);
+		await (end);
+		if (failure != null)
+			throw new RuntimeException ("partition failed", failure);
+		parity = 1 - parity;
+	}
+	
+	// The main loop of each worker thread
+	private void work (int index)
+	{
+		Simulation p = partitions[index];
+		Simulation.setCurrent (p);
+		while (true) {
+			await (start);
+			if (finished) return;
+			try {
+				// Pick up the events sent here during the last window
+				for (int from = 0; from < partitions.length; from++)
+					mail[1-parity][from][index].moveTo (p);
+				sent[index] = Long.MAX_VALUE;
+				p.runUntil (limitTime, limitId);
+				earliest[index] = Math.min (p.headTime(), sent[index]);
+			}
+			catch (Throwable t) {
+				failure = t;
+			}
+			await (end);
+		}
+	}
+	
+	private static void await (CyclicBarrier barrier)
+	{
+		try {
+			barrier.await();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException (e);
+		}
+		catch (BrokenBarrierException e) {
+			throw new RuntimeException (e);
+		}
+	}
+	
+	// Pending events held by the partitions
+	int queueSize()
+	{
+		int size = 0;
+		for (Simulation p : partitions) size += p.queueSize();
+		return size;
+	}
+	
+	void resetStatistics()
+	{
+		for (Simulation p : partitions) p.resetStatistics();
+	}
+}
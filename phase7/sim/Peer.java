@@ -2,18 +2,22 @@
 
 package sim;
 import sim.messages.*;
-import java.util.LinkedList;
-import java.util.Iterator;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
-public class Peer
+public class Peer implements EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	private Node node; // The local node
 	public int address; // The remote node's address
 	public double location; // The remote node's routing location
-	private double latency; // The latency of the connection in seconds
+	private long latency; // The latency of the connection in ticks
+	private Rng random; // Random numbers for this link
+	public LinkModel link = null; // Impairments of packets sent to the peer
 	
 	// Retransmission parameters
 	public final static double RTO = 4.0; // Retransmission timeout in RTTs
@@ -21,6 +25,7 @@ public class Peer
 	public final static double RTT_DECAY = 0.9; // Exp moving average
 	public final static double LINK_IDLE = 8.0; // RTTs without transmitting
 	public final static double MAX_DELAY = 0.1; // Coalescing delay, seconds
+	public final static double MIN_WAIT = 0.001; // For bandwidth, seconds
 	
 	// Backoff
 	public final static double INITIAL_BACKOFF = 1.0; // Seconds
@@ -30,20 +35,35 @@ public class Peer
 	// Out-of-order delivery with duplicate detection
 	public final static int SEQ_RANGE = 65536;
 	
+	// Selective acks (see Simulation.selectiveAcks)
+	private final boolean selectiveAcks;
+	private int[] ranges; // Sequence number ranges to ack, reused
+	
+	// Delayed acks (see Simulation.ackDelay)
+	private final double ackDelay; // Seconds, or 0 to ack immediately
+	private int delayedAck = -1; // Sequence number waiting to be acked
+	private double ackDeadline = Double.POSITIVE_INFINITY; // Abs. time
+	public long acksSent = 0; // Packets sent carrying acks
+	public long ackOnlySent = 0; // Of which carried no data
+	
 	// Sender state
 	private double rtt = 5.0; // Estimated round-trip time in seconds
 	private int txSeq = 0; // Sequence number of next outgoing data packet
 	private int txMaxSeq = SEQ_RANGE - 1; // Highest sequence number
-	private LinkedList<Packet> txBuffer; // Retransmission buffer
+	private RetransmissionBuffer txBuffer;
+	private ArrayList<Packet> due; // Packets to retransmit, reused
 	private DeadlineQueue<Message> searchQueue; // Outgoing search messages
 	private DeadlineQueue<Message> transferQueue; // Outgoing transfers
-	private CongestionWindow window; // AIMD congestion window
+	private CongestionController window; // See Simulation.congestion
 	private double lastTransmission = Double.POSITIVE_INFINITY; // Abs. time
 	private boolean tgif = false; // "Transfers go in first" toggle
+	private long wakeup = -1; // Event ID of the next wakeup, or -1
+	private double wakeupTime = Double.POSITIVE_INFINITY;
+	boolean waitingForBandwidth = false; // In the node's bandwidth queue
+	private Flow flow = null; // Latest transfer, if transfers are flows
 	
 	// Receiver state
-	private HashSet<Integer> rxDupe; // Detect duplicates by sequence number
-	private int rxSeq = 0; // Sequence number of next in-order incoming pkt
+	private ReceiveWindow rxWindow; // Detect duplicates by sequence number
 	
 	// Flow control
 	private int tokensOut = 0; // How many searches can we send?
@@ -56,37 +76,69 @@ public class Peer
 		this.node = node;
 		this.address = address;
 		this.location = location;
-		this.latency = latency;
-		txBuffer = new LinkedList<Packet>();
+		this.latency = Event.toTicks (latency);
+		random = Simulation.current().newStream();
+		txBuffer = new RetransmissionBuffer();
+		due = new ArrayList<Packet>();
 		searchQueue = new DeadlineQueue<Message>();
 		transferQueue = new DeadlineQueue<Message>();
-		window = new CongestionWindow (this);
-		rxDupe = new HashSet<Integer>();
+		window = newController (Simulation.current().congestion);
+		rxWindow = new ReceiveWindow();
+		selectiveAcks = Simulation.current().selectiveAcks;
+		if (selectiveAcks) ranges = new int[Packet.MAX_SACK_RANGES * 2];
+		ackDelay = Simulation.current().ackDelay;
+	}
+	
+	// Create a congestion controller: "aimd", "leaky" or "ledbat"
+	private CongestionController newController (String name)
+	{
+		if (name.equals ("aimd")) return new CongestionWindow (this);
+		if (name.equals ("leaky"))
+			return new LeakyBucketController (this);
+		if (name.equals ("ledbat")) return new DelayController (this);
+		throw new IllegalArgumentException ("unknown controller " + name);
 	}
 	
 	// Queue a message for transmission
 	public void sendMessage (Message m)
 	{
-		m.deadline = Event.time() + MAX_DELAY;
+		Simulation sim = Simulation.current();
+		if (m instanceof Block && sim.fluidTransfers) {
+			sendFlow (m, sim.flows);
+			return;
+		}
+		double deadline = Event.time() + MAX_DELAY;
 		if (m instanceof Block) {
-			if (LOG) log (m + " added to transfer queue");
-			transferQueue.add (m);
+			if (LOG) trace (TRANSFER_QUEUED, m.id).add (m).end();
+			transferQueue.add (m, deadline);
 		}
 		else {
-			if (LOG) log (m + " added to search queue");
-			searchQueue.add (m);
+			if (LOG) trace (SEARCH_QUEUED, m.id).add (m).end();
+			searchQueue.add (m, deadline);
 		}
-		// Start the coalescing timer
-		node.startTimer();
 		// Send as many packets as possible
 		while (send (-1));
+		reschedule();
+	}
+	
+	// Add a block to the transfer that's being sent to the peer, or start
+	// a new transfer if that one's finished or is for another search
+	private void sendFlow (Message m, Flows flows)
+	{
+		if (LOG) trace (TRANSFER_QUEUED, m.id).add (m).end();
+		if (flow != null && !flow.finished && flow.id == m.id)
+			flows.add (flow, m);
+		else {
+			flow = new Flow (m.id, node, address, latency);
+			flows.start (flow, m);
+		}
 	}
 	
 	// Try to send a packet, return true if a packet was sent
 	private boolean send (int ack)
 	{
 		int waiting = searchQueue.size + transferQueue.size;
-		if (LOG) log (waiting + " bytes waiting");
+		if (LOG) trace (WAITING, -1).add (waiting).end();
 		if (ack == -1 && waiting == 0) return false;
 		
 		// Return to slow start when the link is idle
@@ -97,7 +149,7 @@ public class Peer
 		// How many bytes can we send?
 		int size = Math.min (Packet.MAX_SIZE, window.available());
 		size = Math.min (size, node.bandwidth.available());
-		if (LOG) log (size + " bytes available for packet");
+		if (LOG) trace (AVAILABLE, -1).add (size).end();
 		
 		// Ack to send?
 		if (ack != -1) return sendPacket (ack, size);
@@ -114,7 +166,7 @@ public class Peer
 		&& size >= Packet.SENSIBLE_PAYLOAD)
 			return sendPacket (ack, size);
 		
-		if (LOG) log ("not sending a packet");
+		if (LOG) trace (NOT_SENDING, -1).end();
 		return false;
 	}
 	
@@ -122,113 +174,257 @@ public class Peer
 	private boolean sendPacket (int ack, int maxSize)
 	{
 		// Construct a packet
-		Packet p = new Packet (node.net.address, address, latency, ack);
-		if (LOG) log ((maxSize - p.size) + " bytes for messages");
+		Packet p = Packet.obtain (node.net.address, address,
+						latency, ack);
+		p.random = random;
+		p.link = link;
+		// With selective acks every packet acks all the data received
+		int acking = ack;
+		if (acking == -1) acking = delayedAck;
+		if (selectiveAcks && (acking != -1 || rxWindow.next() > 0)) {
+			int n = rxWindow.ranges (acking, ranges,
+						Packet.MAX_SACK_RANGES);
+			p.addSack (rxWindow.next(), ranges, n);
+		}
+		if (LOG) trace (ROOM, -1).add (maxSize - p.size).end();
 		// Don't allow more than SEQ_RANGE payloads to be in flight
 		if (txSeq <= txMaxSeq) {
 			// Alternate priority between searches and transfers
 			if (tgif) {
-				p.addMessages (transferQueue, maxSize);
-				p.addMessages (searchQueue, maxSize);
+				addMessages (p, transferQueue, maxSize);
+				addMessages (p, searchQueue, maxSize);
 				tgif = false;
 			}
 			else {
-				p.addMessages (searchQueue, maxSize);
-				p.addMessages (transferQueue, maxSize);
+				addMessages (p, searchQueue, maxSize);
+				addMessages (p, transferQueue, maxSize);
 				tgif = true;
 			}
 			if (p.messages == null) {
-				if (LOG) log ("no messages added");
+				if (LOG) trace (NO_MESSAGES, -1).end();
 			}
 			else p.seq = txSeq++;
 		}
 		else if (LOG) {
-			log ("waiting for ack " + (txMaxSeq - SEQ_RANGE + 1));
+			trace (WAITING_FOR_ACK, -1)
+				.add (txMaxSeq - SEQ_RANGE + 1).end();
 		}
-		// Don't send empty packets
+		// A delayed ack rides on the data
+		if (p.ack == -1 && p.messages != null) p.ack = delayedAck;
+		// Don't send empty packets (which aren't recycled, but this
+		// is rare)
 		if (p.ack == -1 && p.messages == null) return false;
-		// Transmit the packet
-		if (LOG) log ("sending packet " +p.seq+ ", " +p.size+ " bytes");
-		node.sendPacket (p);
+		// A selective ack covers any delayed ack
+		if (delayedAck != -1
+		&& (p.ack == delayedAck || p.sackBase != -1)) {
+			if (LOG) trace (ACK_SENT, -1).add (delayedAck).end();
+			delayedAck = -1;
+			ackDeadline = Double.POSITIVE_INFINITY;
+		}
+		if (p.ack != -1 || p.sackBase != -1) acksSent++;
+		if (p.messages == null) {
+			ackOnlySent++;
+			Simulation.current().ackOnly++;
+		}
 		// If the packet contains data, buffer it for retransmission
 		if (p.messages != null) {
 			p.sent = Event.time();
+			p.retain();
 			txBuffer.add (p);
-			node.startTimer(); // Start the retransmission timer
 			window.bytesSent (p.size);
 		}
+		// Transmit the packet
+		if (LOG) trace (SENDING, -1).add (p.seq).add (p.size).end();
+		node.sendPacket (p);
 		return true;
 	}
 	
+	// Move messages from a queue to a packet while there's room
+	private void addMessages (Packet p, DeadlineQueue<Message> q,
+					int maxSize)
+	{
+		double now = Event.time();
+		while (q.size > 0 && p.size + q.headSize() <= maxSize) {
+			node.messageDelayed (now - q.deadline());
+			p.addMessage (q.pop());
+		}
+	}
+	
 	// Called by Node when a packet arrives
 	public void handlePacket (Packet p)
 	{
-		if (p.ack != -1) handleAck (p.ack);
+		if (p.sackBase != -1) handleSack (p);
+		else if (p.ack != -1) handleAck (p.ack);
 		if (p.messages != null) handleData (p);
+		reschedule();
 	}
 	
 	private void handleData (Packet p)
 	{
-		if (LOG) log ("received packet " +p.seq+ ", expected " +rxSeq);
-		if (p.seq < rxSeq || rxDupe.contains (p.seq)) {
-			if (LOG) log ("duplicate packet");
+		int rxSeq = rxWindow.next(); // Next in-order incoming packet
+		if (LOG) trace (RECEIVED, -1).add (p.seq).add (rxSeq).end();
+		if (rxWindow.contains (p.seq)) {
+			if (LOG) trace (DUPLICATE, -1).end();
+			Simulation.current().duplicates++;
 			send (p.seq); // Original ack may have been lost
 		}
 		else if (p.seq == rxSeq) {
 			// Find the sequence number of the next missing packet
-			while (rxDupe.remove (++rxSeq));
-			if (LOG) log ("packet in order, now expecting " +rxSeq);
+			rxWindow.advance();
+			if (LOG) trace (IN_ORDER, -1).add (rxWindow.next()).end();
 			// Deliver the messages to the node
-			for (Message m : p.messages)
-				node.handleMessage (m, this);
-			send (p.seq);
+			deliver (p);
+			acknowledge (p.seq, true);
 		}
 		else if (p.seq < rxSeq + SEQ_RANGE) {
-			if (LOG) log ("packet out of order");
-			rxDupe.add (p.seq);
-			// Deliver the messages to the node
-			for (Message m : p.messages)
-				node.handleMessage (m, this);
-			send (p.seq);
+			if (LOG) trace (OUT_OF_ORDER, -1).end();
+			rxWindow.add (p.seq);
+			deliver (p);
+			acknowledge (p.seq, false);
 		}
 		// This indicates a misbehaving sender - discard the packet
-		else if (LOG) log ("WARNING: sequence number out of range");
+		else if (LOG) trace (OUT_OF_RANGE, -1).end();
+	}
+	
+	// Ack a data packet that's just been received, straight away unless
+	// acks are delayed. A delayed ack waits until a data packet can carry
+	// it or the delay is up. Selective acks cover every packet received,
+	// so the ack for each second packet in a row carries the one before;
+	// a packet out of order is acked straight away, so the sender learns
+	// of the hole. Otherwise a packet carries only one ack, so an ack
+	// still waiting is sent when the next packet arrives.
+	private void acknowledge (int seq, boolean inOrder)
+	{
+		if (ackDelay == 0.0) {
+			send (seq);
+			return;
+		}
+		if (selectiveAcks) {
+			if (!inOrder || delayedAck != -1) {
+				send (seq);
+				return;
+			}
+		}
+		else if (delayedAck != -1) send (delayedAck);
+		if (LOG) trace (ACK_DELAYED, -1).add (seq).end();
+		delayedAck = seq;
+		ackDeadline = Event.time() + ackDelay;
+	}
+	
+	// Deliver a packet's messages to the node
+	private void deliver (Packet p)
+	{
+		deliver (p.messages);
+	}
+	
+	// Called by Node when a transfer modelled as a flow arrives
+	public void handleFlow (Flow f)
+	{
+		deliver (f.messages);
+	}
+	
+	// Deliver messages to the node, counting their bytes as goodput
+	private void deliver (ArrayList<Message> messages)
+	{
+		Simulation sim = Simulation.current();
+		for (int i = 0; i < messages.size(); i++) {
+			Message m = messages.get (i);
+			sim.delivered += m.size();
+			node.handleMessage (m, this);
+		}
 	}
 	
 	private void handleAck (int ack)
 	{
-		if (LOG) log ("received ack " + ack);
+		if (LOG) trace (ACK_RECEIVED, -1).add (ack).end();
 		double now = Event.time();
-		Iterator<Packet> i = txBuffer.iterator();
-		while (i.hasNext()) {
-			Packet p = i.next();
-			double age = now - p.sent;
-			// Explicit ack
-			if (p.seq == ack) {
-				i.remove();
-				// Update the congestion window
-				window.bytesAcked (p.size);
-				// Update the average round-trip time
-				rtt = rtt * RTT_DECAY + age * (1.0 - RTT_DECAY);
-				if (LOG) {
-					log ("packet " + ack + " acknowledged");
-					log ("round-trip time " + age);
-					log ("average round-trip time " + rtt);
-				}
-				break;
-			}
-			// Fast retransmission
-			if (p.seq < ack && age > FRTO * rtt) {
-				p.sent = now;
-				if (LOG) log ("fast retransmitting " + p.seq);
-				node.resendPacket (p);
-				window.fastRetransmission (now);
-			}
+		// Fast retransmission of earlier packets that are overdue -
+		// only the oldest transmissions need to be checked
+		due.clear();
+		for (Packet p = txBuffer.oldest(); p != null;
+		p = txBuffer.newer (p)) {
+			if (now - p.sent <= FRTO * rtt) break;
+			if (p.seq < ack) due.add (p);
+		}
+		fastRetransmission (now);
+		// Explicit ack
+		Packet p = txBuffer.remove (ack);
+		if (p != null) acked (p, ack, now);
+		acksHandled();
+	}
+	
+	// Handle a selective ack, which acks every packet below its base and
+	// those in its ranges
+	private void handleSack (Packet a)
+	{
+		if (LOG) trace (SACK_RECEIVED, -1).add (a.sackBase)
+				.add (a.sackRanges).end();
+		double now = Event.time();
+		while (!txBuffer.isEmpty() && txBuffer.first().seq < a.sackBase)
+			acked (txBuffer.remove (txBuffer.first().seq), a.ack, now);
+		int highest = a.sackBase - 1; // Highest sequence number acked
+		for (int i = 0; i < a.sackRanges; i++) {
+			int start = a.sack[i * 2], end = a.sack[i * 2 + 1];
+			// Only visit the packets that haven't been acked yet
+			for (int seq = txBuffer.next (start, end); seq != end;
+			seq = txBuffer.next (seq + 1, end))
+				acked (txBuffer.remove (seq), a.ack, now);
+			highest = Math.max (highest, end - 1);
+		}
+		// Fast retransmission of the holes below the highest packet acked
+		// that are overdue
+		due.clear();
+		for (Packet p = txBuffer.oldest(); p != null;
+		p = txBuffer.newer (p)) {
+			if (now - p.sent <= FRTO * rtt) break;
+			if (p.seq < highest) due.add (p);
+		}
+		fastRetransmission (now);
+		acksHandled();
+	}
+	
+	// Fast retransmission of the packets in the due list, in order
+	private void fastRetransmission (double now)
+	{
+		if (due.size() > 1) Collections.sort (due, BY_SEQ);
+		for (int i = 0; i < due.size(); i++) {
+			Packet p = due.get (i);
+			p.sent = now;
+			txBuffer.retransmitted (p);
+			if (LOG) trace (FAST_RETX, -1).add (p.seq).end();
+			Simulation.current().retransmissions++;
+			node.resendPacket (p);
+			window.fastRetransmission (now);
+		}
+	}
+	
+	// A packet has been acked and removed from the retransmission buffer
+	// - the packet that triggered the ack gives a round-trip time sample
+	private void acked (Packet p, int ack, double now)
+	{
+		int seq = p.seq;
+		double age = now - p.sent;
+		// Update the congestion window
+		window.bytesAcked (p.size);
+		p.release();
+		if (LOG) trace (ACKED, -1).add (seq).end();
+		if (seq != ack) return;
+		// Update the average round-trip time
+		rtt = rtt * RTT_DECAY + age * (1.0 - RTT_DECAY);
+		window.rttSample (age, rtt);
+		if (LOG) {
+			trace (RTT, -1).add (age).end();
+			trace (AVERAGE_RTT, -1).add (rtt).end();
 		}
+	}
+	
+	// Move the window on after handling acks
+	private void acksHandled()
+	{
 		// Recalculate the maximum sequence number
 		if (txBuffer.isEmpty()) txMaxSeq = txSeq + SEQ_RANGE - 1;
-		else txMaxSeq = txBuffer.peek().seq + SEQ_RANGE - 1;
-		if (LOG) log ("maximum sequence number " + txMaxSeq);
+		else txMaxSeq = txBuffer.first().seq + SEQ_RANGE - 1;
+		if (LOG) trace (MAX_SEQ, -1).add (txMaxSeq).end();
 		// Send as many packets as possible
 		while (send (-1));
 	}
@@ -236,22 +432,22 @@ public class Peer
 	// When a local RejectedOverload is received, back off unless backed off
 	public void localRejectedOverload()
 	{
-		if (!Node.useBackoff) return;
+		if (!node.useBackoff) return;
 		double now = Event.time();
 		if (now < backoffUntil) return; // Already backed off
 		backoffLength *= BACKOFF_MULTIPLIER;
 		if (backoffLength > MAX_BACKOFF) backoffLength = MAX_BACKOFF;
-		backoffUntil = now + backoffLength * Math.random();
-		if (LOG) log ("backing off until " + backoffUntil);
+		backoffUntil = now + backoffLength * random.nextDouble();
+		if (LOG) trace (BACKING_OFF, -1).add (backoffUntil).end();
 	}
 	
 	// When a search is accepted, reset the backoff length unless backed off
 	public void successNotOverload()
 	{
-		if (!Node.useBackoff) return;
+		if (!node.useBackoff) return;
 		if (Event.time() < backoffUntil) return;
 		backoffLength = INITIAL_BACKOFF;
-		if (LOG) log ("resetting backoff length");
+		if (LOG) trace (BACKOFF_RESET, -1).end();
 	}
 	
 	// Add outgoing tokens
@@ -278,7 +474,7 @@ public class Peer
 	public void addTokensIn (int tokens)
 	{
 		tokensIn += tokens;
-		sendMessage (new Token (tokens)); // Inform the other side
+		sendMessage (Token.get (tokens)); // Inform the other side
 	}
 	
 	// Remove incoming tokens
@@ -293,35 +489,187 @@ public class Peer
 		return tokensIn;
 	}
 	
-	// Called by Node - return true if there are messages outstanding
-	public boolean timer()
+	// Called by Node when there may be enough bandwidth to send
+	void bandwidthAvailable()
 	{
-		// Stop the timer if there's nothing to wait for
-		if (searchQueue.size + transferQueue.size == 0
-		&& txBuffer.isEmpty()) return false;
+		while (send (-1));
+		reschedule();
+	}
+	
+	// Event callback - a coalescing or retransmission deadline has passed
+	private void wake()
+	{
+		wakeup = -1;
+		wakeupTime = Double.POSITIVE_INFINITY;
 		// Send as many packets as possible
 		while (send (-1));
-		// Check the retransmission timeouts
+		// Send a delayed ack that's waited long enough
 		double now = Event.time();
-		for (Packet p : txBuffer) {
-			if (now - p.sent > RTO * rtt) {
-				// Retransmission timeout
-				if (LOG) log ("retransmitting " + p.seq);
-				p.sent = now;
-				node.resendPacket (p);
-				window.timeout (now);
-			}
+		if (delayedAck != -1 && now >= ackDeadline) send (delayedAck);
+		// Check the retransmission timeouts, oldest transmissions first
+		due.clear();
+		for (Packet p = txBuffer.oldest(); p != null;
+		p = txBuffer.newer (p)) {
+			if (now < p.sent + RTO * rtt) break;
+			due.add (p);
 		}
-		return true;
+		if (due.size() > 1) Collections.sort (due, BY_SEQ);
+		for (int i = 0; i < due.size(); i++) {
+			// Retransmission timeout
+			Packet p = due.get (i);
+			if (LOG) trace (RETX, -1).add (p.seq).end();
+			p.sent = now;
+			txBuffer.retransmitted (p);
+			Simulation.current().retransmissions++;
+			node.resendPacket (p);
+			window.timeout (now);
+		}
+		reschedule();
+	}
+	
+	// Move the wakeup to the next deadline, cancelling it if there's
+	// nothing to wait for, and queue for bandwidth if necessary
+	private void reschedule()
+	{
+		if (!waitingForBandwidth && bandwidthNeeded() > 0)
+			node.waitForBandwidth (this);
+		double next = nextDeadline();
+		if (next == wakeupTime) return;
+		Event.cancel (wakeup);
+		wakeupTime = next;
+		if (next == Double.POSITIVE_INFINITY) wakeup = -1;
+		else {
+			// At least one tick, in case rounding puts the deadline
+			// a fraction of a tick in the past
+			long delay = Event.toTicks (next - Event.time());
+			wakeup = Event.scheduleTicks (this, Math.max (delay, 1L),
+							WAKEUP, null);
+		}
+	}
+	
+	// Return the time of the next retransmission timeout or coalescing
+	// deadline, or infinity if there's nothing to wait for
+	private double nextDeadline()
+	{
+		double now = Event.time();
+		double next = Double.POSITIVE_INFINITY;
+		// The oldest transmission times out first
+		Packet oldest = txBuffer.oldest();
+		if (oldest != null) next = oldest.sent + RTO * rtt;
+		next = Math.min (next, ackDeadline);
+		if (searchQueue.deadline() > now)
+			next = Math.min (next, searchQueue.deadline());
+		if (transferQueue.deadline() > now)
+			next = Math.min (next, transferQueue.deadline());
+		// A paced controller may be holding messages back
+		if (searchQueue.size + transferQueue.size > 0)
+			next = Math.min (next, window.nextAvailable (now));
+		return next;
+	}
+	
+	// Called by Node - return the size of packet that's ready to send
+	// and only waiting for bandwidth, or zero if there isn't one (waiting
+	// for the congestion window or an ack doesn't count)
+	int bandwidthNeeded()
+	{
+		if (txSeq > txMaxSeq) return 0;
+		// The smallest packet that can carry a message
+		int min = Integer.MAX_VALUE;
+		if (searchQueue.size > 0) min = searchQueue.headSize();
+		if (transferQueue.size > 0)
+			min = Math.min (min, transferQueue.headSize());
+		if (min == Integer.MAX_VALUE) return 0;
+		min += Packet.HEADER_SIZE;
+		// The smallest packet send() is willing to send
+		double now = Event.time();
+		int need = Integer.MAX_VALUE;
+		if (searchQueue.deadline() <= now)
+			need = searchQueue.headSize();
+		if (transferQueue.deadline() <= now)
+			need = Math.min (need, transferQueue.headSize());
+		if (searchQueue.size + transferQueue.size
+		>= Packet.SENSIBLE_PAYLOAD)
+			need = Math.min (need, Packet.SENSIBLE_PAYLOAD);
+		if (need == Integer.MAX_VALUE) return 0;
+		need = Math.max (need, min);
+		if (Math.min (Packet.MAX_SIZE, window.available()) < need) return 0;
+		return need;
 	}
 	
 	public void log (String message)
 	{
-		Event.log (node.net.address + ":" + address + " " + message);
+		trace (Trace.TEXT, -1).add (message).end();
+	}
+	
+	// Start a log record about this link and the given search, if any
+	private Trace trace (int kind, int id)
+	{
+		return Event.trace (kind, node.net.address, address, id);
 	}
 	
 	public String toString()
 	{
 		return Integer.toString (address);
 	}
+	
+	// EventTarget interface
+	public void handleEvent (int code, Object data)
+	{
+		if (code == WAKEUP) wake();
+	}
+	
+	private final static int WAKEUP = Event.code();
+	
+	// Retransmissions are sent in sequence number order
+	private final static Comparator<Packet> BY_SEQ
+		= new Comparator<Packet>() {
+			public int compare (Packet a, Packet b)
+			{
+				return Integer.compare (a.seq, b.seq);
+			}
+		};
+	
+	// Log records
+	private final static int TRANSFER_QUEUED
+		= Trace.kind ("{} added to transfer queue");
+	private final static int SEARCH_QUEUED
+		= Trace.kind ("{} added to search queue");
+	private final static int WAITING = Trace.kind ("{} bytes waiting");
+	private final static int AVAILABLE
+		= Trace.kind ("{} bytes available for packet");
+	private final static int NOT_SENDING
+		= Trace.kind ("not sending a packet");
+	private final static int ROOM = Trace.kind ("{} bytes for messages");
+	private final static int NO_MESSAGES = Trace.kind ("no messages added");
+	private final static int WAITING_FOR_ACK
+		= Trace.kind ("waiting for ack {}");
+	private final static int SENDING
+		= Trace.kind ("sending packet {}, {} bytes");
+	private final static int RECEIVED
+		= Trace.kind ("received packet {}, expected {}");
+	private final static int DUPLICATE = Trace.kind ("duplicate packet");
+	private final static int IN_ORDER
+		= Trace.kind ("packet in order, now expecting {}");
+	private final static int OUT_OF_ORDER
+		= Trace.kind ("packet out of order");
+	private final static int OUT_OF_RANGE
+		= Trace.kind ("WARNING: sequence number out of range");
+	private final static int ACK_DELAYED = Trace.kind ("delaying ack {}");
+	private final static int ACK_SENT = Trace.kind ("sent delayed ack {}");
+	private final static int ACK_RECEIVED = Trace.kind ("received ack {}");
+	private final static int SACK_RECEIVED
+		= Trace.kind ("received selective ack {} with {} ranges");
+	private final static int ACKED = Trace.kind ("packet {} acknowledged");
+	private final static int RTT = Trace.kind ("round-trip time {}");
+	private final static int AVERAGE_RTT
+		= Trace.kind ("average round-trip time {}");
+	private final static int FAST_RETX
+		= Trace.kind ("fast retransmitting {}");
+	private final static int MAX_SEQ
+		= Trace.kind ("maximum sequence number {}");
+	private final static int BACKING_OFF
+		= Trace.kind ("backing off until {}");
+	private final static int BACKOFF_RESET
+		= Trace.kind ("resetting backoff length");
+	private final static int RETX = Trace.kind ("retransmitting {}");
 }
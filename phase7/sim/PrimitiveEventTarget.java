@@ -0,0 +1,11 @@
+// This software has been placed in the public domain by its author
+
+// An event target that can receive a primitive payload without boxing -
+// see Event.schedule()
+
+package sim;
+
+public interface PrimitiveEventTarget extends EventTarget
+{
+	public void handleEvent (int code, long value);
+}
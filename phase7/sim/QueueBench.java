@@ -0,0 +1,138 @@
+// This software has been placed in the public domain by its author
+
+// Compare the throughput and allocation rate of the event queue
+// implementations - each round uses a different seed, but every queue gets
+// the same workload. The hold workload exercises the queue on its own: a
+// fixed number of events, each of which reschedules itself after an
+// exponentially distributed delay.
+//
+// The sim workload with 50 simulated seconds (QueueBench 1 sim <nodes> 10 50)
+// gives these events per second:
+//
+//	nodes	events	peak queue	tree	heap	calendar
+//	1k	0.92M	49k		341k	527k	524k
+//	10k	9.64M	544k		231k	326k	337k
+//
+// The heap and calendar queues are level at 1k nodes; at 10k the calendar
+// queue is about 4% ahead, and the tree falls further behind. A 10k node
+// run of 200 seconds needs more than 5 GB of heap.
+
+package sim;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+class QueueBench
+{
+	private final static String[] QUEUES = { "tree", "heap", "calendar" };
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: QueueBench <rounds> tokens");
+		System.err.println ("       QueueBench <rounds> sim <nodes> <load> <duration>");
+		System.err.println ("       QueueBench <rounds> hold <size> <duration>");
+		System.exit (1);
+	}
+	
+	// Bytes allocated so far by the calling thread
+	private static long allocated()
+	{
+		com.sun.management.ThreadMXBean bean
+			= (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes
+			(Thread.currentThread().getId());
+	}
+	
+	// Garbage collections so far
+	private static long collections()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean bean :
+		ManagementFactory.getGarbageCollectorMXBeans())
+			count += bean.getCollectionCount();
+		return count;
+	}
+	
+	private static void hold (Simulation sim, int size, double duration)
+	{
+		Simulation.setCurrent (sim);
+		final Rng random = sim.random();
+		PrimitiveEventTarget target = new PrimitiveEventTarget() {
+			public void handleEvent (int code, long value)
+			{
+				Event.schedule (this,
+					-Math.log (1.0 - random.nextDouble()),
+					code, value + 1);
+			}
+			
+			public void handleEvent (int code, Object data) {}
+		};
+		for (int i = 0; i < size; i++)
+			Event.schedule (target, random.nextDouble(), HOLD, 0L);
+		sim.setDuration (duration);
+		sim.run();
+	}
+	
+	private final static int HOLD = Event.code();
+	
+	public static void main (String[] args)
+	{
+		if (args.length < 2) usage();
+		int rounds = Integer.parseInt (args[0]);
+		String workload = args[1];
+		int nodes = 0, size = 0;
+		double load = 0.0, duration = 0.0;
+		if (workload.equals ("sim")) {
+			if (args.length != 5) usage();
+			nodes = Integer.parseInt (args[2]);
+			load = Double.parseDouble (args[3]);
+			duration = Double.parseDouble (args[4]);
+		}
+		else if (workload.equals ("hold")) {
+			if (args.length != 4) usage();
+			size = Integer.parseInt (args[2]);
+			duration = Double.parseDouble (args[3]);
+		}
+		else if (!workload.equals ("tokens")) usage();
+		
+		// The first round warms up the JIT for every queue
+		for (int r = 0; r <= rounds; r++) {
+			for (String q : QUEUES) {
+				Simulation sim;
+				long gcs = collections(), bytes = allocated();
+				long start = System.nanoTime();
+				if (workload.equals ("sim")) {
+					Sim s = new Sim (nodes);
+					sim = s.simulation;
+					sim.setSeed (r);
+					sim.useQueue (q);
+					s.run (load / 60.0, duration);
+				}
+				else if (workload.equals ("hold")) {
+					sim = new Simulation();
+					sim.setSeed (r);
+					sim.useQueue (q);
+					hold (sim, size, duration);
+				}
+				else {
+					sim = new Simulation();
+					sim.setSeed (r);
+					sim.useQueue (q);
+					TokenTest.run (sim);
+				}
+				double secs = (System.nanoTime() - start) * 1e-9;
+				bytes = allocated() - bytes;
+				gcs = collections() - gcs;
+				if (r == 0) continue;
+				System.out.println (q + " " + sim.dispatched
+					+ " events " + secs + " seconds "
+					+ (long) (sim.dispatched / secs)
+					+ " events/second, peak queue "
+					+ sim.peakQueueSize + ", "
+					+ bytes / (sim.dispatched * 1e-6) / 1e6
+					+ " MB allocated per million events, "
+					+ gcs + " collections");
+			}
+		}
+	}
+}
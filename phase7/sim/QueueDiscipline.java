@@ -0,0 +1,21 @@
+// This software has been placed in the public domain by its author
+
+// Decides which packets a network interface's queue drops, besides those
+// that don't fit (see NetworkInterface). A discipline can drop packets as
+// they arrive, as RED does, or as they reach the head of the queue, as
+// CoDel does. Each queue has its own discipline.
+
+package sim;
+import java.io.Serializable;
+
+interface QueueDiscipline extends Serializable
+{
+	// A packet has arrived at a queue holding the given number of bytes -
+	// return false to drop it
+	public boolean admit (int queued, long now);
+	
+	// A packet that has waited the given number of ticks is about to be
+	// sent, with the given number of bytes still queued - return false to
+	// drop it instead
+	public boolean keep (long waited, int queued, long now);
+}
@@ -0,0 +1,157 @@
+// This software has been placed in the public domain by its author
+
+// A peer's record of the data packets it has received: the sequence
+// number of the next packet expected in order, and a circular bitset of
+// the packets received out of order after it. Bit i of the set stands for
+// the sequence number that is congruent to i modulo the set's size, so
+// the set slides along with the next expected packet without moving.
+// The set starts small and doubles when a packet arrives too far ahead,
+// up to Peer.SEQ_RANGE bits. The packets received out of order can also
+// be listed as ranges of consecutive sequence numbers, for selective acks.
+
+package sim;
+import java.io.Serializable;
+
+class ReceiveWindow implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private long[] words = new long[2]; // Circular bitset
+	private int next = 0; // Sequence number of next in-order packet
+	
+	// Return the sequence number of the next packet expected in order
+	public int next()
+	{
+		return next;
+	}
+	
+	// Return true if the packet with the given sequence number has
+	// already been received
+	public boolean contains (int seq)
+	{
+		if (seq - next < 0) return true;
+		if (seq - next >= words.length * 64) return false;
+		return (words[(seq >>> 6) & (words.length - 1)] & 1L << seq) != 0;
+	}
+	
+	// Record a packet received out of order, less than Peer.SEQ_RANGE
+	// ahead of the next expected packet
+	public void add (int seq)
+	{
+		while (seq - next >= words.length * 64) grow();
+		words[(seq >>> 6) & (words.length - 1)] |= 1L << seq;
+	}
+	
+	// Record the next expected packet and move past it and any packets
+	// after it that were received out of order, a word at a time
+	public void advance()
+	{
+		next++;
+		int mask = words.length - 1;
+		while (true) {
+			int w = (next >>> 6) & mask;
+			// Count the received packets from the next one up
+			long run = ~words[w] >>> next;
+			int received = Long.numberOfTrailingZeros (run);
+			if (received == 0) return;
+			// The count stops at the end of the word
+			received = Math.min (received, 64 - (next & 63));
+			if (received == 64) words[w] = 0;
+			else words[w] &= ~(((1L << received) - 1) << next);
+			next += received;
+		}
+	}
+	
+	// Fill in up to max ranges of packets received out of order, as pairs
+	// of the first sequence number in the range and the one after the
+	// last, and return the number of ranges. The range holding the given
+	// sequence number comes first, if it was received out of order, then
+	// the others from the lowest up.
+	public int ranges (int seq, int[] ranges, int max)
+	{
+		int limit = next + words.length * 64;
+		int n = 0;
+		if (seq - next > 0 && contains (seq)) {
+			ranges[0] = previousClear (seq) + 1;
+			ranges[1] = nextClear (seq, limit);
+			n = 1;
+		}
+		int s = next;
+		while (n < max) {
+			s = nextSet (s, limit);
+			if (s == limit) break;
+			int end = nextClear (s, limit);
+			if (n == 0 || s != ranges[0]) {
+				ranges[n * 2] = s;
+				ranges[n * 2 + 1] = end;
+				n++;
+			}
+			s = end;
+		}
+		return n;
+	}
+	
+	// Return the first sequence number from the given one up that has
+	// been received out of order, or the limit if there isn't one
+	private int nextSet (int seq, int limit)
+	{
+		int mask = words.length - 1;
+		while (seq - limit < 0) {
+			long bits = words[(seq >>> 6) & mask] >>> seq;
+			if (bits != 0) {
+				seq += Long.numberOfTrailingZeros (bits);
+				break;
+			}
+			seq += 64 - (seq & 63);
+		}
+		if (seq - limit > 0) return limit;
+		return seq;
+	}
+	
+	// Return the first sequence number from the given one up that hasn't
+	// been received, or the limit if there isn't one
+	private int nextClear (int seq, int limit)
+	{
+		int mask = words.length - 1;
+		while (seq - limit < 0) {
+			long bits = ~words[(seq >>> 6) & mask] >>> seq;
+			if (bits != 0) {
+				seq += Long.numberOfTrailingZeros (bits);
+				break;
+			}
+			seq += 64 - (seq & 63);
+		}
+		if (seq - limit > 0) return limit;
+		return seq;
+	}
+	
+	// Return the last sequence number from the given one down that hasn't
+	// been received - the next expected packet's bit is always clear
+	private int previousClear (int seq)
+	{
+		int mask = words.length - 1;
+		while (true) {
+			long bits = ~words[(seq >>> 6) & mask] << (63 - (seq & 63));
+			if (bits != 0) return seq - Long.numberOfLeadingZeros (bits);
+			seq -= (seq & 63) + 1;
+		}
+	}
+	
+	// Double the size of the set, moving each bit to its new position
+	private void grow()
+	{
+		long[] old = words;
+		int bits = old.length * 64;
+		words = new long[old.length * 2];
+		for (int w = 0; w < old.length; w++) {
+			long word = old[w];
+			while (word != 0) {
+				int i = w * 64 + Long.numberOfTrailingZeros (word);
+				word &= word - 1;
+				// The sequence number this bit stands for
+				int seq = next + ((i - next) & (bits - 1));
+				words[(seq >>> 6) & (words.length - 1)] |= 1L << seq;
+			}
+		}
+	}
+}
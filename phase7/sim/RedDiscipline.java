@@ -0,0 +1,67 @@
+// This software has been placed in the public domain by its author
+
+// Random early detection (Floyd and Jacobson, 1993): drop arriving packets
+// with a probability that grows with the average length of the queue, so
+// senders back off before the queue fills. The average is a moving
+// average, so bursts pass through, and it decays while the queue is empty
+// as if small packets had been arriving.
+
+package sim;
+
+class RedDiscipline implements QueueDiscipline
+{
+	private final static long serialVersionUID = 1L;
+	
+	public final static double WEIGHT = 0.02; // Of each new queue length
+	public final static double MAX_P = 0.1; // Drop probability at maximum
+	
+	private final int min, max; // Thresholds of the average, bytes
+	private final long packetTime; // Time to send a small packet, ticks
+	private final Rng random;
+	private double average = 0.0; // Average queue length, bytes
+	private int count = -1; // Packets admitted since the last drop
+	private long lastArrival = 0; // Ticks
+	
+	public RedDiscipline (int min, int max, long packetTime, Rng random)
+	{
+		this.min = min;
+		this.max = max;
+		this.packetTime = Math.max (packetTime, 1L);
+		this.random = random;
+	}
+	
+	public boolean admit (int queued, long now)
+	{
+		if (queued == 0) {
+			// Decay the average for the packets that could have
+			// been sent while the queue was idle
+			double idle = (now - lastArrival) / (double) packetTime;
+			average *= Math.pow (1.0 - WEIGHT, idle);
+		}
+		else average += (queued - average) * WEIGHT;
+		lastArrival = now;
+		if (average < min) {
+			count = -1;
+			return true;
+		}
+		if (average >= max) {
+			count = 0;
+			return false;
+		}
+		// Spread the drops out evenly between the thresholds
+		count++;
+		double p = MAX_P * (average - min) / (max - min);
+		if (count * p < 1.0) p /= 1.0 - count * p;
+		else p = 1.0;
+		if (random.nextDouble() < p) {
+			count = 0;
+			return false;
+		}
+		return true;
+	}
+	
+	public boolean keep (long waited, int queued, long now)
+	{
+		return true;
+	}
+}
@@ -0,0 +1,160 @@
+// This software has been placed in the public domain by its author
+
+// A peer's retransmission buffer: the data packets it has sent that
+// haven't been acked yet. The packets are held in a circular buffer
+// indexed by sequence number, so an ack finds its packet directly, and
+// they're also linked in the order they were last transmitted, oldest
+// first, so the packets that are due for retransmission can be found
+// without looking at the others. A bitset of the occupied slots lets the
+// packets in a range of sequence numbers be found a word at a time.
+
+package sim;
+import java.io.Serializable;
+
+class RetransmissionBuffer implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private Packet[] packets = new Packet[64]; // Indexed by sequence number
+	private long[] occupied = new long[1]; // Bitset of the occupied slots
+	private int[] older = new int[64], newer = new int[64]; // Slots, or -1
+	private int oldest = -1, newest = -1; // Slots, or -1 if empty
+	private int first = 0; // Lowest sequence number in the buffer
+	private int count = 0;
+	
+	// Add a packet that has just been transmitted for the first time -
+	// packets must be added in sequence number order
+	public void add (Packet p)
+	{
+		if (count == 0) first = p.seq;
+		while (p.seq - first >= packets.length) grow();
+		int slot = p.seq & (packets.length - 1);
+		packets[slot] = p;
+		occupied[slot >>> 6] |= 1L << slot;
+		link (slot);
+		count++;
+	}
+	
+	public int size()
+	{
+		return count;
+	}
+	
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+	
+	// Return the packet with the lowest sequence number, or null if the
+	// buffer is empty
+	public Packet first()
+	{
+		if (count == 0) return null;
+		return packets[first & (packets.length - 1)];
+	}
+	
+	// Return the packet that was transmitted longest ago, or null
+	public Packet oldest()
+	{
+		if (oldest == -1) return null;
+		return packets[oldest];
+	}
+	
+	// Return the packet transmitted after the given one, or null
+	public Packet newer (Packet p)
+	{
+		int slot = newer[p.seq & (packets.length - 1)];
+		if (slot == -1) return null;
+		return packets[slot];
+	}
+	
+	// Remove and return the packet with the given sequence number, or
+	// return null if it's not in the buffer
+	public Packet remove (int seq)
+	{
+		if (count == 0 || seq - first < 0 || seq - first >= packets.length)
+			return null;
+		int mask = packets.length - 1;
+		int slot = seq & mask;
+		Packet p = packets[slot];
+		if (p == null) return null;
+		unlink (slot);
+		packets[slot] = null;
+		occupied[slot >>> 6] &= ~(1L << slot);
+		count--;
+		// Move up to the next packet that hasn't been acked
+		if (count > 0 && seq == first)
+			first = next (first, first + packets.length);
+		return p;
+	}
+	
+	// Return the lowest sequence number from the given one up to but not
+	// including the end that's in the buffer, or the end if there isn't one
+	public int next (int seq, int end)
+	{
+		if (count == 0) return end;
+		if (seq - first < 0) seq = first;
+		int limit = first + packets.length;
+		if (end - limit < 0) limit = end;
+		int mask = occupied.length - 1;
+		while (seq - limit < 0) {
+			long bits = occupied[(seq >>> 6) & mask] >>> seq;
+			if (bits != 0) {
+				seq += Long.numberOfTrailingZeros (bits);
+				if (seq - limit < 0) return seq;
+				break;
+			}
+			seq += 64 - (seq & 63);
+		}
+		return end;
+	}
+	
+	// Move a packet that has just been retransmitted to the newest end
+	public void retransmitted (Packet p)
+	{
+		int slot = p.seq & (packets.length - 1);
+		unlink (slot);
+		link (slot);
+	}
+	
+	// Add a slot at the newest end of the list
+	private void link (int slot)
+	{
+		older[slot] = newest;
+		newer[slot] = -1;
+		if (newest == -1) oldest = slot;
+		else newer[newest] = slot;
+		newest = slot;
+	}
+	
+	private void unlink (int slot)
+	{
+		if (older[slot] == -1) oldest = newer[slot];
+		else newer[older[slot]] = newer[slot];
+		if (newer[slot] == -1) newest = older[slot];
+		else older[newer[slot]] = older[slot];
+	}
+	
+	// Double the capacity, moving each packet to its new slot and keeping
+	// the transmission order
+	private void grow()
+	{
+		int size = packets.length * 2;
+		Packet[] oldPackets = packets;
+		int[] oldNewer = newer;
+		int slot = oldest;
+		packets = new Packet[size];
+		occupied = new long[size >>> 6];
+		older = new int[size];
+		newer = new int[size];
+		oldest = newest = -1;
+		while (slot != -1) {
+			Packet p = oldPackets[slot];
+			int s = p.seq & (size - 1);
+			packets[s] = p;
+			occupied[s >>> 6] |= 1L << s;
+			link (s);
+			slot = oldNewer[slot];
+		}
+	}
+}
@@ -0,0 +1,100 @@
+// This software has been placed in the public domain by its author
+
+// A fast random number generator that can be split into independent
+// streams - the SplitMix64 algorithm used by java.util.SplittableRandom.
+// Each simulation has a master stream created from a single seed, and each
+// node, link and workload generator splits off its own stream when it's
+// created, so a run can be repeated from its seed and components on
+// different threads never share a generator.
+
+package sim;
+import java.util.List;
+import java.io.Serializable;
+
+public class Rng implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final static long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	
+	private long seed;
+	private final long gamma; // Odd increment
+	
+	public Rng (long seed)
+	{
+		this (seed, GOLDEN_GAMMA);
+	}
+	
+	private Rng (long seed, long gamma)
+	{
+		this.seed = seed;
+		this.gamma = gamma;
+	}
+	
+	// Return a new stream, statistically independent of this one
+	public Rng split()
+	{
+		return new Rng (nextLong(), mixGamma (nextSeed()));
+	}
+	
+	public long nextLong()
+	{
+		return mix64 (nextSeed());
+	}
+	
+	// Uniformly distributed in [0, 1), like Math.random()
+	public double nextDouble()
+	{
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+	
+	// Uniformly distributed in [0, bound)
+	public int nextInt (int bound)
+	{
+		if (bound <= 0) throw new IllegalArgumentException ("bound");
+		int r = mix32 (nextSeed());
+		int m = bound - 1;
+		if ((bound & m) == 0) return r & m; // Power of two
+		// Reject values from the incomplete range at the top
+		for (int u = r >>> 1; u + m - (r = u % bound) < 0;
+		u = mix32 (nextSeed()) >>> 1);
+		return r;
+	}
+	
+	// Shuffle a list in place, like Collections.shuffle()
+	public <T> void shuffle (List<T> list)
+	{
+		for (int i = list.size() - 1; i > 0; i--) {
+			int j = nextInt (i + 1);
+			list.set (j, list.set (i, list.get (j)));
+		}
+	}
+	
+	private long nextSeed()
+	{
+		return seed += gamma;
+	}
+	
+	private static long mix64 (long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	private static int mix32 (long z)
+	{
+		z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+		return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+	}
+	
+	// Gammas with too few bit transitions make poor streams
+	private static long mixGamma (long z)
+	{
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount (z ^ (z >>> 1));
+		return n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
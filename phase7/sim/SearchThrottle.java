@@ -3,9 +3,12 @@
 // An AIMD leaky bucket
 
 package sim;
+import java.io.Serializable;
 
-public class SearchThrottle
+public class SearchThrottle implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	public final static double INITIAL_RATE = 5.0; // Searches per second
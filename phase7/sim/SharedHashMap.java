@@ -0,0 +1,63 @@
+// This software has been placed in the public domain by its author
+
+// A map that can be frozen so that forked copies of a simulation share its
+// contents (see Fork). After freezing, each copy keeps its own map of the
+// entries it has added since. Entries can't be removed, which the caches
+// that use this class don't need.
+
+package sim;
+import java.util.HashMap;
+import java.io.Serializable;
+
+class SharedHashMap<Key,Value> implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private Frozen<Key,Value> base = null; // Entries at the last freeze
+	private HashMap<Key,Value> added; // Entries added since the freeze
+	
+	public SharedHashMap (int capacity)
+	{
+		added = new HashMap<Key,Value> (capacity);
+	}
+	
+	public Value get (Key key)
+	{
+		Value value = added.get (key);
+		if (value == null && base != null) value = base.map.get (key);
+		return value;
+	}
+	
+	public void put (Key key, Value value)
+	{
+		added.put (key, value);
+	}
+	
+	// Freeze the current contents, which will be shared by any copies
+	// made from now on
+	public void freeze()
+	{
+		if (added.isEmpty()) return;
+		HashMap<Key,Value> map;
+		if (base == null) map = added;
+		else {
+			map = new HashMap<Key,Value> (base.map);
+			map.putAll (added);
+		}
+		base = new Frozen<Key,Value> (map);
+		added = new HashMap<Key,Value>();
+	}
+	
+	private static class Frozen<Key,Value>
+		implements Fork.Shared, Serializable
+	{
+		private final static long serialVersionUID = 1L;
+		
+		final HashMap<Key,Value> map; // Never modified
+		
+		Frozen (HashMap<Key,Value> map)
+		{
+			this.map = map;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+// This software has been placed in the public domain by its author
+
+// A set that remembers the order in which keys were added, like
+// LinkedHashSet, and that can be frozen so that forked copies of a
+// simulation share its contents (see Fork). After freezing, the frozen keys
+// are read-only and each copy keeps its own record of the keys it has
+// added and removed since, so a copy only pays for what it changes.
+
+package sim;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.io.Serializable;
+
+class SharedLinkedSet<Key> implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private Frozen<Key> base = null; // Keys at the last freeze, or null
+	private int next = 0; // Frozen keys before this have been removed
+	private int baseSize = 0; // Frozen keys that haven't been removed
+	private HashSet<Key> removed; // Frozen keys removed out of order
+	private LinkedHashSet<Key> added; // Keys added since the freeze
+	
+	public SharedLinkedSet()
+	{
+		removed = new HashSet<Key>();
+		added = new LinkedHashSet<Key>();
+	}
+	
+	public SharedLinkedSet (int capacity)
+	{
+		removed = new HashSet<Key>();
+		added = new LinkedHashSet<Key> (capacity);
+	}
+	
+	public int size()
+	{
+		return baseSize + added.size();
+	}
+	
+	public boolean contains (Key key)
+	{
+		return added.contains (key) || frozen (key);
+	}
+	
+	// Add a key at the end, return false if it's already present
+	public boolean add (Key key)
+	{
+		if (frozen (key)) return false;
+		return added.add (key);
+	}
+	
+	public boolean remove (Key key)
+	{
+		if (added.remove (key)) return true;
+		if (!frozen (key)) return false;
+		removed.add (key);
+		baseSize--;
+		return true;
+	}
+	
+	// Return the oldest key, or null if the set is empty
+	public Key first()
+	{
+		if (base != null) {
+			// Skip the frozen keys that have been removed
+			while (next < base.keys.length
+			&& removed.remove (base.keys[next])) next++;
+			if (next < base.keys.length) return base.keys[next];
+		}
+		if (added.isEmpty()) return null;
+		return added.iterator().next();
+	}
+	
+	// Is the key one of the frozen keys that haven't been removed?
+	private boolean frozen (Key key)
+	{
+		if (base == null) return false;
+		Integer index = base.index.get (key);
+		return index != null && index >= next && !removed.contains (key);
+	}
+	
+	// Freeze the current contents, which will be shared by any copies
+	// made from now on - the contents of the set don't change
+	@SuppressWarnings("unchecked")
+	public void freeze()
+	{
+		if (added.isEmpty() && removed.isEmpty() && next == 0) return;
+		Key[] keys = (Key[]) new Object[size()];
+		int n = 0;
+		if (base != null)
+			for (int i = next; i < base.keys.length; i++)
+				if (!removed.contains (base.keys[i]))
+					keys[n++] = base.keys[i];
+		for (Key key : added) keys[n++] = key;
+		base = new Frozen<Key> (keys);
+		next = 0;
+		baseSize = keys.length;
+		removed = new HashSet<Key>();
+		added = new LinkedHashSet<Key>();
+	}
+	
+	// The read-only keys shared by copies, in order, with their positions
+	private static class Frozen<Key> implements Fork.Shared, Serializable
+	{
+		private final static long serialVersionUID = 1L;
+		
+		final Key[] keys;
+		final HashMap<Key,Integer> index;
+		
+		Frozen (Key[] keys)
+		{
+			this.keys = keys;
+			index = new HashMap<Key,Integer> (keys.length * 2);
+			for (int i = 0; i < keys.length; i++) index.put (keys[i], i);
+		}
+	}
+}
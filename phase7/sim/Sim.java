@@ -2,50 +2,171 @@
 
 package sim;
 import sim.clients.SimplePublisher;
+import java.io.IOException;
+import java.util.ArrayList;
 
 class Sim implements EventTarget
 {
-	private final int NODES = 100; // Number of nodes
+	private final static long serialVersionUID = 1L;
+	
+	private final int NODES; // Number of nodes
 	private final int DEGREE = 5; // Average degree
 	private final double FAST = 15000; // Speed of fast nodes, bytes/second
 	private final double SLOW = 5000; // Speed of slow nodes, bytes/second
 	private final double LATENCY = 0.1; // Latency of all links in seconds
+	private final double WARM_UP = 3600.0; // Seconds before counting
 	private Node[] nodes;
+	private ArrayList<SimplePublisher> publishers;
+	public final Simulation simulation; // Clock, network and statistics
+	
+	public Sim()
+	{
+		this (100);
+	}
+	
+	public Sim (int nodes)
+	{
+		NODES = nodes;
+		simulation = new Simulation();
+	}
 	
 	public void run (double rate)
 	{
-		Network.reorder = true;
-		Network.lossRate = 0.001;
+		run (rate, 10800.0);
+	}
+	
+	public void run (double rate, double duration)
+	{
+		build (rate);
+		resume (duration);
+	}
+	
+	// Build the network and workload in this simulation
+	public void build (double rate)
+	{
+		Simulation.setCurrent (simulation);
+		Rng random = simulation.random();
+		simulation.network.reorder = true;
+		simulation.network.lossRate = 0.001;
 		
 		// Create the nodes - ten percent are slow
 		nodes = new Node[NODES];
 		for (int i = 0; i < NODES; i++) {
 			double location = (double) i / NODES;
-			if (Math.random() < 0.9)
+			if (random.nextDouble() < 0.9)
 				nodes[i] = new Node (location, FAST, FAST);
 			else nodes[i] = new Node (location, SLOW, SLOW);
 		}
 		// Connect the nodes
 		makeKleinbergNetwork();
 		// One in ten nodes is a publisher, each with ten readers
+		publishers = new ArrayList<SimplePublisher>();
 		for (int i = 0; i < NODES; i += 10) {
 			SimplePublisher pub
 				= new SimplePublisher (rate, 0, nodes[i]);
+			publishers.add (pub);
 			int readers = 0;
 			while (readers < 10) {
-				int index = (int) (Math.random() * NODES);
+				int index = random.nextInt (NODES);
 				if (index == i) continue;
 				if (pub.addReader (nodes[index])) readers++;
 			}
 		}
 		// Reset the counters after the first hour
-		Event.schedule (this, 3600.0, RESET_COUNTERS, null);
-		// Run the simulation
-		Event.duration = 10800.0;
-		Event.run();
-		// Print the copiously detailed results
-		System.out.println (Node.succeededLocally + " "
-			+ Node.succeededRemotely + " " + Node.failed);
+		Event.schedule (this, WARM_UP, RESET_COUNTERS, null);
+	}
+	
+	// Run the simulation until the given time (not for the given time)
+	public void resume (double duration)
+	{
+		simulation.setDuration (duration);
+		simulation.run();
+	}
+	
+	// Run until the end of the warm-up, when the counters are reset
+	public void warmUp()
+	{
+		resume (WARM_UP);
+	}
+	
+	// Save the simulation after the warm-up
+	public void save (String filename) throws IOException
+	{
+		warmUp();
+		Snapshot.save (this, filename);
+	}
+	
+	public static Sim load (String filename)
+		throws IOException, ClassNotFoundException
+	{
+		return (Sim) Snapshot.load (filename);
+	}
+	
+	// Split the simulation into independent copies, which share the
+	// nodes' stores and caches until they change them - each copy can be
+	// given its own settings and run on its own thread
+	public ArrayList<Sim> fork (int copies)
+		throws IOException, ClassNotFoundException
+	{
+		for (Node n : nodes) n.freeze();
+		return Fork.copies (this, copies);
+	}
+	
+	// Change the insert rate of a running simulation
+	public void setRate (double rate)
+	{
+		for (SimplePublisher pub : publishers) pub.rate = rate;
+	}
+	
+	// Change the flow control settings of a running simulation
+	public void setFlowControl (boolean tokens, boolean backoff,
+					boolean throttle)
+	{
+		Simulation.setCurrent (simulation);
+		simulation.useTokens = tokens;
+		simulation.useBackoff = backoff;
+		simulation.useThrottle = throttle;
+		for (Node n : nodes) n.setFlowControl (tokens, backoff, throttle);
+	}
+	
+	// The copiously detailed results
+	public String results()
+	{
+		return simulation.succeededLocally + " "
+			+ simulation.succeededRemotely + " " + simulation.failed;
+	}
+	
+	// Search and packet statistics
+	public String searchStatistics()
+	{
+		double latency = 0.0;
+		if (simulation.succeededRemotely > 0)
+			latency = simulation.searchLatency
+				/ simulation.succeededRemotely;
+		return "mean search latency " + latency + " seconds, "
+			+ simulation.retransmissions + " retransmissions, "
+			+ simulation.dropped + " packets dropped by queues, "
+			+ simulation.duplicates + " duplicates received, "
+			+ simulation.ackOnly + " ack-only packets";
+	}
+	
+	// Transport statistics
+	public String transportStatistics()
+	{
+		double delay = 0.0;
+		if (simulation.transmitted > 0)
+			delay = simulation.queueDelay / simulation.transmitted;
+		return simulation.delivered + " bytes delivered, "
+			+ "mean tx queueing delay " + delay + " seconds";
+	}
+	
+	// Event queue statistics
+	public String queueStatistics()
+	{
+		return simulation.dispatched + " events, "
+			+ simulation.queueSize() + " pending, peak queue "
+			+ simulation.peakQueueSize + ", "
+			+ simulation.cancelled + " cancelled";
 	}
 	
 	// Return the lattice distance between a and b
@@ -57,6 +178,7 @@ class Sim implements EventTarget
 	
 	private void makeKleinbergNetwork()
 	{
+		Rng random = simulation.random();
 		// Calculate the normalising constant
 		double norm = 0.0;
 		for (int i = 1; i < NODES; i++)
@@ -67,7 +189,7 @@ class Sim implements EventTarget
 			for (int j = 0; j < i; j++) {
 				double p = 1.0 / latticeDistance (i, j) / norm;
 				for (int k = 0; k < DEGREE; k++) {
-					if (Math.random() < p) {
+					if (random.nextDouble() < p) {
 						nodes[i].connectBothWays
 							(nodes[j], LATENCY);
 						break;
@@ -79,29 +201,196 @@ class Sim implements EventTarget
 	
 	private static void usage()
 	{
-		System.err.println ("Usage: Sim <load> <tokens> <backoff> <throttle>");
+		System.err.println ("Usage: Sim [options] <load> <tokens> <backoff> <throttle> [threads [seed]]");
+		System.err.println ("       Sim [options] save <file> <load> <tokens> <backoff> <throttle> [threads [seed]]");
+		System.err.println ("       Sim [trace <trace file>] load <file> [threads]");
+		System.err.println ("A loaded simulation keeps the options it was saved with.");
+		System.err.println ("Options, in any order:");
+		System.err.println ("       trace <trace file>");
+		System.err.println ("       fluid (one thread only)");
+		System.err.println ("       trains");
+		System.err.println ("       sack");
+		System.err.println ("       delack <seconds>");
+		System.err.println ("       aqm <droptail|red|codel>");
+		System.err.println ("       cc <aimd|leaky|ledbat>");
 		System.exit (1);
 	}
 	
-	public static void main (String[] args)
+	public static void main (String[] args) throws Exception
+	{
+		// Consume the options in front of the command
+		int used = 0;
+		boolean model = false; // Options other than trace given
+		while (used < args.length) {
+			String option = args[used];
+			if (option.equals ("trace")) {
+				// Write the log to a binary trace file (see
+				// TraceReader)
+				if (used + 1 >= args.length) usage();
+				traceFile = args[used + 1];
+				used += 2;
+			}
+			else if (option.equals ("fluid")) {
+				// Model block transfers as flows (see Flows)
+				fluid = true;
+				model = true;
+				used++;
+			}
+			else if (option.equals ("trains")) {
+				// Send packets as trains (see NetworkInterface)
+				trains = true;
+				model = true;
+				used++;
+			}
+			else if (option.equals ("sack")) {
+				// Use selective acks (see Peer)
+				sack = true;
+				model = true;
+				used++;
+			}
+			else if (option.equals ("delack")) {
+				// Delay acks for up to the given time (see Peer)
+				if (used + 1 >= args.length) usage();
+				ackDelay = Double.parseDouble (args[used + 1]);
+				if (ackDelay < 0.0) usage();
+				model = true;
+				used += 2;
+			}
+			else if (option.equals ("aqm")) {
+				// Select the interfaces' queue discipline
+				if (used + 1 >= args.length) usage();
+				discipline = args[used + 1];
+				if (!oneOf (discipline, DISCIPLINES)) usage();
+				model = true;
+				used += 2;
+			}
+			else if (option.equals ("cc")) {
+				// Select the peers' congestion controller
+				if (used + 1 >= args.length) usage();
+				congestion = args[used + 1];
+				if (!oneOf (congestion, CONTROLLERS)) usage();
+				model = true;
+				used += 2;
+			}
+			else break;
+		}
+		if (used > 0) {
+			if (used == args.length) usage();
+			String[] rest = new String[args.length - used];
+			System.arraycopy (args, used, rest, 0, rest.length);
+			args = rest;
+		}
+		if (args.length > 0 && args[0].equals ("save")) {
+			// Run the warm-up and save the simulation
+			if (args.length < 2) usage();
+			String filename = args[1];
+			String[] rest = new String[args.length - 2];
+			System.arraycopy (args, 2, rest, 0, rest.length);
+			Sim s = configure (rest);
+			s.trace();
+			s.build (Double.parseDouble (rest[0]) / 60.0);
+			s.save (filename);
+			s.simulation.closeTrace();
+			System.err.println ("seed " + s.simulation.seed());
+			System.err.println (s.queueStatistics());
+			return;
+		}
+		if (args.length > 0 && args[0].equals ("load")) {
+			// Resume a saved simulation after its warm-up
+			if (args.length < 2 || args.length > 3) usage();
+			if (model) {
+				System.err.println ("Only trace applies to load");
+				usage();
+			}
+			Sim s = load (args[1]);
+			if (args.length == 3)
+				s.simulation.threads = Integer.parseInt (args[2]);
+			checkThreads (s);
+			s.trace();
+			s.resume (10800.0);
+			s.simulation.closeTrace();
+			s.print();
+			return;
+		}
+		Sim s = configure (args);
+		s.trace();
+		s.run (Double.parseDouble (args[0]) / 60.0);
+		s.simulation.closeTrace();
+		s.print();
+	}
+	
+	// Set by the command line
+	private static String traceFile = null;
+	private static boolean fluid = false;
+	private static boolean trains = false;
+	private static boolean sack = false;
+	private static double ackDelay = 0.0;
+	private static String discipline = "droptail";
+	private static String congestion = "aimd";
+	
+	private final static String[] DISCIPLINES = { "droptail", "red", "codel" };
+	private final static String[] CONTROLLERS = { "aimd", "leaky", "ledbat" };
+	
+	// Return true if the string is one of the given names
+	private static boolean oneOf (String s, String[] names)
+	{
+		for (String name : names) if (s.equals (name)) return true;
+		return false;
+	}
+	
+	// Open the trace file, if any
+	private void trace() throws IOException
 	{
-		if (args.length != 4) usage();
+		if (traceFile != null) simulation.traceTo (traceFile);
+	}
+	
+	// Create a simulation from the command line arguments
+	private static Sim configure (String[] args)
+	{
+		if (args.length < 4 || args.length > 6) usage();
 		double load = Double.parseDouble (args[0]);
-		Node.useTokens = Boolean.parseBoolean (args[1]);
-		Node.useBackoff = Boolean.parseBoolean (args[2]);
-		Node.useThrottle = Boolean.parseBoolean (args[3]);
 		if (load <= 0.0) usage();
-		new Sim().run (load / 60.0);
+		Sim s = new Sim();
+		s.simulation.useTokens = Boolean.parseBoolean (args[1]);
+		s.simulation.useBackoff = Boolean.parseBoolean (args[2]);
+		s.simulation.useThrottle = Boolean.parseBoolean (args[3]);
+		s.simulation.fluidTransfers = fluid;
+		s.simulation.packetTrains = trains;
+		s.simulation.selectiveAcks = sack;
+		s.simulation.ackDelay = ackDelay;
+		s.simulation.queueDiscipline = discipline;
+		s.simulation.congestion = congestion;
+		if (args.length >= 5)
+			s.simulation.threads = Integer.parseInt (args[4]);
+		if (args.length == 6)
+			s.simulation.setSeed (Long.parseLong (args[5]));
+		checkThreads (s);
+		return s;
 	}
 	
-	public void handleEvent (int code, Object data)
+	// Fluid transfers link all the nodes, so they can't be partitioned
+	private static void checkThreads (Sim s)
 	{
-		if (code == RESET_COUNTERS) {
-			Node.succeededLocally = 0;
-			Node.succeededRemotely = 0;
-			Node.failed = 0;
+		if (s.simulation.fluidTransfers && s.simulation.threads > 1) {
+			System.err.println ("Fluid transfers need one thread");
+			usage();
 		}
 	}
 	
+	private void print()
+	{
+		System.out.println (results());
+		// Queue statistics go to stderr to keep stdout parsable
+		System.err.println ("seed " + simulation.seed());
+		System.err.println (searchStatistics());
+		System.err.println (transportStatistics());
+		System.err.println (queueStatistics());
+	}
+	
+	public void handleEvent (int code, Object data)
+	{
+		if (code == RESET_COUNTERS) simulation.resetStatistics();
+	}
+	
 	private final static int RESET_COUNTERS = Event.code();
 }
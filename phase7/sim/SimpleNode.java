@@ -12,7 +12,7 @@ import java.util.Random;
 class SimpleNode {
 
     boolean print_steps = false;
-    static Random rand;
+    static Random rand = new Random(System.currentTimeMillis() % 10000);
     boolean learning = false;
     boolean delays = false;
     int rand_interval;
@@ -67,7 +67,6 @@ class SimpleNode {
 	// est = new SimpleEstimator(estsize);
 	// rand = new Random ((int) (System.currentTimeMillis() % 10000));
 	estimators = new HashMap<SimpleNode,SimpleEstimator>();
-	rand = new Random(System.currentTimeMillis() % 10000);
     }
 
     /*
@@ -0,0 +1,608 @@
+// This software has been placed in the public domain by its author
+
+// The state of a single simulation run: the clock and event queue, the
+// network's address space, search IDs, flow control settings and
+// statistics. Each thread has a current simulation, which the static
+// methods of Event act on, so independent runs can share a JVM as long as
+// each one stays on its own thread.
+//
+// Each node's events form a lane, and lane 0 holds the events that don't
+// belong to any node. Event IDs and search IDs are allocated by lane, so
+// the order in which a node handles simultaneous events doesn't depend on
+// what other nodes are doing - which lets a parallel run (see ParallelRun)
+// hand each node exactly the same sequence of events as a sequential run.
+//
+// A simulation can be saved between runs and resumed later, along with
+// everything reachable from it and its pending events (see Snapshot).
+// Every serializable class declares its serialVersionUID, so a snapshot
+// can still be read after recompiling, as long as the classes' fields
+// haven't changed - a class whose fields change should change its
+// serialVersionUID too.
+
+package sim;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class Simulation implements Serializable
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final static int PURGE_MIN = 1024; // Cancelled IDs before purge
+	private final static int LANE_BITS = 24; // Low bits of an event ID
+	private final static int MAX_LANES = 1 << LANE_BITS;
+	// Stands in for the object payload of an event with a primitive payload
+	private final static Object VALUE = new Object();
+	
+	private static ThreadLocal<Simulation> current
+		= new ThreadLocal<Simulation>() {
+			protected Simulation initialValue()
+			{
+				return new Simulation();
+			}
+		};
+	
+	// Return the calling thread's current simulation
+	public static Simulation current()
+	{
+		return current.get();
+	}
+	
+	// Make a simulation current for the calling thread
+	public static void setCurrent (Simulation s)
+	{
+		current.set (s);
+	}
+	
+	// Event queue
+	private String queueName = "heap";
+	private transient EventQueue queue = new HeapEventQueue();
+	private long now = 0; // Ticks
+	private long currentId = -1; // ID of the event being dispatched
+	private transient LongHashSet cancelledIds = new LongHashSet();
+	long duration = Long.MAX_VALUE; // Ticks
+	public boolean blankLine = false; // Blank line between events?
+	
+	// Log records (see Trace)
+	private transient TraceFile traceFile = null; // Null to print text
+	private transient Trace trace = null;
+	
+	// Recycled packets (see Packet)
+	private final static int MAX_RECYCLED = 4096;
+	private transient ArrayDeque<Packet> recycled = null;
+	
+	// Random numbers
+	private long seed = System.nanoTime();
+	private Rng random = new Rng (seed); // Master stream
+	
+	// Address space
+	final Network network;
+	
+	// Lanes
+	private int lanes = 1; // Lane 0 is for events that don't belong to a node
+	private int lane = 0; // Lane of the event being dispatched
+	private long[] laneEvents = new long[16]; // Events scheduled by each lane
+	private int[] laneSearches = new int[16]; // Searches started by each lane
+	private boolean lanesFixed = false; // Set once searches have started
+	
+	// Parallel runs
+	public int threads = 1; // Run in parallel if greater than one
+	private transient ParallelRun router = null; // Set while partitioned
+	private transient int[] partitionOf = null; // Partition of each lane
+	final int partition; // This simulation's partition, or -1
+	
+	// Flow control, copied by each node when it's created
+	public boolean useTokens = false;
+	public boolean useBackoff = false;
+	public boolean useThrottle = false;
+	
+	// Send queued packets as trains, without an event for the end of each
+	// transmission (see NetworkInterface) - set before creating any nodes
+	public boolean packetTrains = false;
+	
+	// Peers acknowledge data with selective acks, carried by every packet
+	// they send, rather than acking each packet once - set before
+	// creating any nodes
+	public boolean selectiveAcks = false;
+	
+	// How long peers may delay acks, waiting for data to carry them or
+	// for later acks to combine with, in seconds (0 to ack immediately)
+	// - set before creating any nodes
+	public double ackDelay = 0.0;
+	
+	// Each peer's congestion controller: "aimd", "leaky" or "ledbat" (see
+	// Peer) - set before creating any nodes
+	public String congestion = "aimd";
+	
+	// Discipline of each interface's queues (see NetworkInterface) - set
+	// before creating any nodes
+	public String queueDiscipline = "droptail";
+	
+	// Model block transfers as fluid flows rather than packets (see Flows)
+	// - set before the run starts, and only for sequential runs
+	public boolean fluidTransfers = false;
+	final Flows flows;
+	
+	// Statistics (for requests and inserts combined)
+	public int succeededLocally = 0;
+	public int succeededRemotely = 0;
+	public int failed = 0;
+	public double searchLatency = 0.0; // Of remote successes, total secs
+	public long retransmissions = 0; // Packets retransmitted by peers
+	public long dropped = 0; // Packets dropped by interface queues
+	public long ackOnly = 0; // Packets sent by peers with no data
+	public long duplicates = 0; // Data packets received more than once
+	public long delivered = 0; // Bytes of messages delivered by peers
+	public long transmitted = 0; // Packets transmitted by interfaces
+	public double queueDelay = 0.0; // Total secs they waited in tx queues
+	
+	// Event queue statistics
+	public long dispatched = 0; // Number of events processed
+	public int peakQueueSize = 0; // Most pending at once, per partition
+	public long cancelled = 0; // Cancelled events removed
+	
+	public Simulation()
+	{
+		network = new Network();
+		flows = new Flows (network);
+		partition = -1;
+	}
+	
+	// Create a partition of a parallel run, sharing the parent's network,
+	// lanes and settings
+	Simulation (Simulation parent, ParallelRun router, int[] partitionOf,
+			int partition)
+	{
+		this.partition = partition;
+		this.router = router;
+		this.partitionOf = partitionOf;
+		useQueue (parent.queueName);
+		network = parent.network;
+		flows = parent.flows;
+		lanes = parent.lanes;
+		laneEvents = parent.laneEvents;
+		laneSearches = parent.laneSearches;
+		lanesFixed = true;
+		duration = parent.duration;
+		blankLine = parent.blankLine;
+		traceFile = parent.traceFile;
+		useTokens = parent.useTokens;
+		useBackoff = parent.useBackoff;
+		useThrottle = parent.useThrottle;
+	}
+	
+	// Select the event queue implementation - call before scheduling
+	public void useQueue (String name)
+	{
+		if (queue.size() > 0)
+			throw new IllegalStateException ("events already queued");
+		queue = newQueue (name);
+		queueName = name;
+	}
+	
+	private static EventQueue newQueue (String name)
+	{
+		if (name.equals ("tree")) return new TreeEventQueue();
+		if (name.equals ("heap")) return new HeapEventQueue();
+		if (name.equals ("calendar")) return new CalendarEventQueue();
+		throw new IllegalArgumentException ("unknown queue " + name);
+	}
+	
+	// Stop the run after the given number of seconds
+	public void setDuration (double seconds)
+	{
+		duration = Event.toTicks (seconds);
+	}
+	
+	public double duration()
+	{
+		return Event.toSeconds (duration);
+	}
+	
+	// Restart the master random stream - call before creating any nodes
+	public void setSeed (long seed)
+	{
+		this.seed = seed;
+		random = new Rng (seed);
+	}
+	
+	public long seed()
+	{
+		return seed;
+	}
+	
+	// The master stream, for building the network and setting up runs
+	public Rng random()
+	{
+		return random;
+	}
+	
+	// A new stream for a node, link or workload generator
+	public Rng newStream()
+	{
+		return random.split();
+	}
+	
+	// Pending events, including those held by partitions
+	public int queueSize()
+	{
+		if (router != null && partition == -1)
+			return queue.size() + router.queueSize();
+		return queue.size();
+	}
+	
+	public void resetStatistics()
+	{
+		succeededLocally = 0;
+		succeededRemotely = 0;
+		failed = 0;
+		searchLatency = 0.0;
+		retransmissions = 0;
+		dropped = 0;
+		ackOnly = 0;
+		duplicates = 0;
+		delivered = 0;
+		transmitted = 0;
+		queueDelay = 0.0;
+		if (router != null && partition == -1) router.resetStatistics();
+	}
+	
+	// Allocate a lane for a new node - all nodes must be created before
+	// any searches start
+	public int newLane()
+	{
+		if (lanesFixed)
+			throw new IllegalStateException ("searches have started");
+		if (lanes == MAX_LANES)
+			throw new IllegalStateException ("too many lanes");
+		if (lanes == laneEvents.length) {
+			laneEvents = Arrays.copyOf (laneEvents, lanes * 2);
+			laneSearches = Arrays.copyOf (laneSearches, lanes * 2);
+		}
+		return lanes++;
+	}
+	
+	// The nth search started by a lane gets ID n * lanes + lane - IDs are
+	// ints, so a lane can start at most 2^31 / lanes searches, and a run
+	// that starts more fails rather than reusing IDs
+	public int nextSearchId()
+	{
+		lanesFixed = true;
+		int n = laneSearches[lane];
+		if (n > (Integer.MAX_VALUE - lane) / lanes)
+			throw new IllegalStateException ("search IDs exhausted");
+		laneSearches[lane]++;
+		return n * lanes + lane;
+	}
+	
+	// Schedule an event in the lane of the event being dispatched
+	public long schedule (EventTarget target, double delay,
+				int code, Object data)
+	{
+		return schedule (lane, target, Event.toTicks (delay), code,
+				data, 0L);
+	}
+	
+	// Schedule an event in the given lane (normally the lane of the node
+	// the target belongs to) - return the event's ID, which can be used to
+	// cancel it
+	public long schedule (int lane, EventTarget target, double delay,
+				int code, Object data)
+	{
+		return schedule (lane, target, Event.toTicks (delay), code,
+				data, 0L);
+	}
+	
+	// Schedule an event with a primitive payload, which is passed to
+	// PrimitiveEventTarget.handleEvent() - nothing is allocated
+	public long schedule (PrimitiveEventTarget target, double delay,
+				int code, long value)
+	{
+		return schedule (lane, target, Event.toTicks (delay), code,
+				VALUE, value);
+	}
+	
+	public long schedule (int lane, PrimitiveEventTarget target,
+				double delay, int code, long value)
+	{
+		return schedule (lane, target, Event.toTicks (delay), code,
+				VALUE, value);
+	}
+	
+	// Schedule events with delays in ticks rather than seconds
+	public long scheduleTicks (EventTarget target, long delay,
+				int code, Object data)
+	{
+		return schedule (lane, target, delay, code, data, 0L);
+	}
+	
+	public long scheduleTicks (int lane, EventTarget target, long delay,
+				int code, Object data)
+	{
+		return schedule (lane, target, delay, code, data, 0L);
+	}
+	
+	private long schedule (int lane, EventTarget target, long delay,
+				int code, Object data, long value)
+	{
+		if (delay < 0) throw new IllegalArgumentException ("delay");
+		// The ID depends only on the number of events this lane has
+		// scheduled so far, not on any other lane
+		long id = laneEvents[this.lane]++ << LANE_BITS | this.lane;
+		route (delay + now, id, lane, target, code, data, value);
+		return id;
+	}
+	
+	// Queue an event locally or pass it to the partition it belongs to
+	private void route (long time, long id, int lane,
+				EventTarget target, int code, Object data, long value)
+	{
+		if (partitionOf == null || partitionOf[lane] == partition)
+			enqueue (time, id, lane, target, code, data, value);
+		else router.send (this, time, id, lane, target, code, data,
+					value);
+	}
+	
+	void enqueue (long time, long id, int lane, EventTarget target,
+			int code, Object data, long value)
+	{
+		queue.add (time, id, lane, target, code, data, value);
+		if (queue.size() > peakQueueSize) peakQueueSize = queue.size();
+	}
+	
+	// Cancel a pending event - IDs of events that have already been
+	// dispatched or cancelled, and negative IDs, are ignored
+	public void cancel (long id)
+	{
+		if (id < 0) return;
+		cancelledIds.add (id);
+		// Cancelled events are skipped when they reach the head of the
+		// queue, but purge them early if they make up much of the queue
+		if (cancelledIds.size() > PURGE_MIN
+		&& cancelledIds.size() * 2 > queue.size()) {
+			cancelled += queue.purge (cancelledIds);
+			cancelledIds.clear(); // Any leftover IDs are stale
+		}
+	}
+	
+	public boolean nextEvent()
+	{
+		if (ready (duration, Long.MAX_VALUE)) {
+			dispatch();
+			return true;
+		}
+		// The simulation's alloted time has run out
+		if (queue.size() > 0) now = duration;
+		return false;
+	}
+	
+	// Dispatch the events that come before the given time and ID
+	void runUntil (long limitTime, long limitId)
+	{
+		while (ready (limitTime, limitId)) dispatch();
+	}
+	
+	// Return true if the first event comes before the given time and ID
+	boolean ready (long limitTime, long limitId)
+	{
+		// Skip cancelled events at the head of the queue
+		while (cancelledIds.size() > 0 && queue.size() > 0
+		&& cancelledIds.remove (queue.headId())) {
+			queue.pop();
+			cancelled++;
+		}
+		if (queue.size() == 0) return false;
+		long time = queue.headTime();
+		return time < limitTime
+			|| (time == limitTime && queue.headId() < limitId);
+	}
+	
+	// Move the pending events to another simulation, dropping those that
+	// have been cancelled
+	void moveEventsTo (Simulation s)
+	{
+		while (queue.size() > 0) {
+			long id = queue.headId();
+			if (cancelledIds.remove (id)) cancelled++;
+			else s.enqueue (queue.headTime(), id, queue.headLane(),
+					queue.headTarget(), queue.headCode(),
+					queue.headData(), queue.headValue());
+			queue.pop();
+		}
+		cancelledIds.clear();
+	}
+	
+	// Time and ID of the first event, which may have been cancelled
+	long headTime()
+	{
+		if (queue.size() == 0) return Long.MAX_VALUE;
+		return queue.headTime();
+	}
+	
+	long headId()
+	{
+		return queue.headId();
+	}
+	
+	// Dispatch the first event
+	void dispatch()
+	{
+		// Update the clock
+		now = queue.headTime();
+		currentId = queue.headId();
+		lane = queue.headLane();
+		EventTarget target = queue.headTarget();
+		int code = queue.headCode();
+		Object data = queue.headData();
+		long value = queue.headValue();
+		queue.pop();
+		dispatched++;
+		// Pass the payload to the target's callback method
+		if (data == VALUE)
+			((PrimitiveEventTarget) target).handleEvent (code, value);
+		else target.handleEvent (code, data);
+	}
+	
+	void setTime (long time)
+	{
+		now = time;
+	}
+	
+	// The current time in seconds
+	public double time()
+	{
+		return Event.toSeconds (now);
+	}
+	
+	// The current time in ticks
+	public long ticks()
+	{
+		return now;
+	}
+	
+	// The ID of the event being dispatched
+	long eventId()
+	{
+		return currentId;
+	}
+	
+	public void log (String message)
+	{
+		trace().begin (Trace.TEXT, -1, -1, -1).add (message).end();
+	}
+	
+	// Return this simulation's log, creating it if necessary
+	Trace trace()
+	{
+		if (trace == null) trace = new Trace (this, traceFile);
+		return trace;
+	}
+	
+	// Write log records to a binary trace file rather than printing them
+	// (see TraceReader) - call before running
+	public void traceTo (String filename) throws IOException
+	{
+		closeTrace();
+		traceFile = new TraceFile (filename);
+		trace = null;
+	}
+	
+	// Write any buffered records and close the trace file
+	public void closeTrace() throws IOException
+	{
+		if (traceFile == null) return;
+		flushTrace();
+		traceFile.close();
+		traceFile = null;
+		trace = null;
+	}
+	
+	// Hand any buffered records to the trace file's writer
+	void flushTrace()
+	{
+		if (trace != null) trace.flush();
+	}
+	
+	// Return a recycled packet, or null if there are none
+	Packet recycledPacket()
+	{
+		if (recycled == null) return null;
+		return recycled.poll();
+	}
+	
+	// Keep a packet for reuse, unless there are plenty already
+	void recyclePacket (Packet p)
+	{
+		if (recycled == null) recycled = new ArrayDeque<Packet>();
+		if (recycled.size() < MAX_RECYCLED) recycled.push (p);
+	}
+	
+	// Run until the duration expires or there are no more events to
+	// process, with this simulation current for the calling thread
+	public void run()
+	{
+		setCurrent (this);
+		if (threads > 1 && fluidTransfers)
+			throw new IllegalStateException
+				("fluid transfers can't run in parallel");
+		if (threads > 1) {
+			// Hand the pending events for nodes to the partitions
+			router = new ParallelRun (this, threads, lanes);
+			partitionOf = router.partitionOf;
+			EventQueue pending = queue;
+			queue = newQueue (queueName);
+			while (pending.size() > 0) {
+				long id = pending.headId();
+				if (cancelledIds.remove (id)) cancelled++;
+				else route (pending.headTime(), id,
+					pending.headLane(), pending.headTarget(),
+					pending.headCode(), pending.headData(),
+					pending.headValue());
+				pending.pop();
+			}
+			try {
+				router.run(); // Hands the events back when it's done
+			}
+			finally {
+				router = null;
+				partitionOf = null;
+			}
+		}
+		else while (nextEvent()) {}
+	}
+	
+	// Write the pending events in order, with each code's name in place
+	// of its number, which can change from one run to the next
+	private void writeObject (ObjectOutputStream out) throws IOException
+	{
+		if (router != null)
+			throw new NotSerializableException ("parallel run");
+		out.defaultWriteObject();
+		cancelled += queue.purge (cancelledIds);
+		cancelledIds.clear();
+		out.writeInt (queue.size());
+		EventQueue rest = newQueue (queueName);
+		while (queue.size() > 0) {
+			long time = queue.headTime(), id = queue.headId();
+			int lane = queue.headLane(), code = queue.headCode();
+			EventTarget target = queue.headTarget();
+			Object data = queue.headData();
+			long value = queue.headValue();
+			out.writeLong (time);
+			out.writeLong (id);
+			out.writeInt (lane);
+			out.writeObject (target);
+			out.writeObject (Event.codeName (code));
+			out.writeBoolean (data == VALUE);
+			if (data != VALUE) out.writeObject (data);
+			out.writeLong (value);
+			rest.add (time, id, lane, target, code, data, value);
+			queue.pop();
+		}
+		queue = rest;
+	}
+	
+	private void readObject (ObjectInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		queue = newQueue (queueName);
+		cancelledIds = new LongHashSet();
+		int events = in.readInt();
+		for (int i = 0; i < events; i++) {
+			long time = in.readLong();
+			long id = in.readLong();
+			int lane = in.readInt();
+			EventTarget target = (EventTarget) in.readObject();
+			int code = Event.codeNamed ((String) in.readObject());
+			Object data = VALUE;
+			if (!in.readBoolean()) data = in.readObject();
+			long value = in.readLong();
+			queue.add (time, id, lane, target, code, data, value);
+		}
+	}
+}
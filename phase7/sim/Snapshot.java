@@ -0,0 +1,49 @@
+// This software has been placed in the public domain by its author
+
+// Save an object, and everything reachable from it, to a compressed file
+// and load it again - used to save a simulation after its warm-up period
+// and resume it as many times as necessary (see Sim)
+
+package sim;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class Snapshot
+{
+	private final static int BUFFER_SIZE = 65536;
+	
+	public static void save (Object state, String filename)
+		throws IOException
+	{
+		ObjectOutputStream out = new ObjectOutputStream
+			(new BufferedOutputStream (new GZIPOutputStream
+			(new FileOutputStream (filename), BUFFER_SIZE)));
+		try {
+			out.writeObject (state);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	public static Object load (String filename)
+		throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new ObjectInputStream
+			(new BufferedInputStream (new GZIPInputStream
+			(new FileInputStream (filename), BUFFER_SIZE)));
+		try {
+			return in.readObject();
+		}
+		finally {
+			in.close();
+		}
+	}
+}
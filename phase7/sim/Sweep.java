@@ -0,0 +1,112 @@
+// This software has been placed in the public domain by its author
+
+// Run several independent simulations in parallel in one JVM. In fork
+// mode, one simulation is warmed up and then a copy of it is continued
+// with each configuration (see Fork).
+
+package sim;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class Sweep
+{
+	private static void usage()
+	{
+		System.err.println ("Usage: Sweep <threads> <duration> <load>,<tokens>,<backoff>,<throttle>[,<seed>] ...");
+		System.err.println ("       Sweep fork <threads> <duration> <warm-up config> <load>,<tokens>,<backoff>,<throttle> ...");
+		System.exit (1);
+	}
+	
+	// Split a configuration into its fields
+	private static String[] parse (String config, boolean seed)
+	{
+		String[] fields = config.split (",");
+		if (fields.length != 4 && !(seed && fields.length == 5)) usage();
+		if (Double.parseDouble (fields[0]) <= 0.0) usage();
+		return fields;
+	}
+	
+	// Create a simulation with the given configuration
+	private static Sim create (String config)
+	{
+		String[] fields = parse (config, true);
+		Sim s = new Sim();
+		s.simulation.useTokens = Boolean.parseBoolean (fields[1]);
+		s.simulation.useBackoff = Boolean.parseBoolean (fields[2]);
+		s.simulation.useThrottle = Boolean.parseBoolean (fields[3]);
+		if (fields.length == 5)
+			s.simulation.setSeed (Long.parseLong (fields[4]));
+		return s;
+	}
+	
+	// Run one configuration and return its results
+	private static Callable<String> job (final String config,
+						final double duration)
+	{
+		final Sim s = create (config);
+		final double load = Double.parseDouble (parse (config, true)[0]);
+		return new Callable<String>() {
+			public String call()
+			{
+				s.run (load / 60.0, duration);
+				return config + " " + s.results();
+			}
+		};
+	}
+	
+	// Continue a copy of a warmed-up simulation with one configuration
+	private static Callable<String> job (final String config,
+						final Sim s, final double duration)
+	{
+		String[] fields = parse (config, false);
+		s.setRate (Double.parseDouble (fields[0]) / 60.0);
+		s.setFlowControl (Boolean.parseBoolean (fields[1]),
+				Boolean.parseBoolean (fields[2]),
+				Boolean.parseBoolean (fields[3]));
+		return new Callable<String>() {
+			public String call()
+			{
+				s.resume (duration);
+				return config + " " + s.results();
+			}
+		};
+	}
+	
+	public static void main (String[] args) throws Exception
+	{
+		boolean fork = args.length > 0 && args[0].equals ("fork");
+		int first = fork ? 1 : 0;
+		if (args.length < first + (fork ? 5 : 3)) usage();
+		int threads = Integer.parseInt (args[first]);
+		double duration = Double.parseDouble (args[first+1]);
+		ArrayList<Callable<String>> jobs
+			= new ArrayList<Callable<String>>();
+		if (fork) {
+			// Warm up once, then fork a copy for each configuration
+			String config = args[first+2];
+			Sim warm = create (config);
+			warm.build (Double.parseDouble (parse (config, true)[0])
+					/ 60.0);
+			warm.warmUp();
+			ArrayList<Sim> copies = warm.fork (args.length - first - 3);
+			for (int i = first + 3; i < args.length; i++)
+				jobs.add (job (args[i], copies.get (i - first - 3),
+						duration));
+		}
+		else {
+			for (int i = first + 2; i < args.length; i++)
+				jobs.add (job (args[i], duration));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool (threads);
+		ArrayList<Future<String>> results
+			= new ArrayList<Future<String>>();
+		for (Callable<String> job : jobs) results.add (pool.submit (job));
+		// Print the results in the order the runs were given
+		for (Future<String> f : results)
+			System.out.println (f.get());
+		pool.shutdown();
+	}
+}
@@ -1,9 +1,12 @@
 // This software has been placed in the public domain by its author
 
 package sim;
+import java.io.Serializable;
 
-class TokenBucket
+class TokenBucket implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final double rate, size;
 	private double tokens, lastUpdated;
 	
@@ -25,6 +28,15 @@ class TokenBucket
 		return (int) tokens;
 	}
 	
+	// Seconds until at least t tokens will be available
+	public double delay (int t)
+	{
+		available(); // Bring the counter up to date
+		if (tokens >= t) return 0.0;
+		if (t > size) return Double.POSITIVE_INFINITY;
+		return (t - tokens) / rate;
+	}
+	
 	public void remove (int t)
 	{
 		tokens -= t; // Counter can go negative
@@ -5,13 +5,20 @@ package sim;
 class TokenTest
 {
 	public static void main (String[] args)
+	{
+		run (new Simulation());
+	}
+	
+	public static void run (Simulation sim)
 	{
 		int NODES = 10; // Number of nodes
 		double SPEED = 15000; // Network speed, bytes per second
 		double LATENCY = 0.1; // Latency of all links in seconds
 		
-		Network.reorder = true;
-		Network.lossRate = 0.001;
+		Simulation.setCurrent (sim);
+		Rng random = sim.random();
+		sim.network.reorder = true;
+		sim.network.lossRate = 0.001;
 		
 		// Create the nodes
 		Node[] nodes = new Node[NODES];
@@ -24,18 +31,18 @@ class TokenTest
 		}
 		// Insert and request ten keys
 		for (int i = 0; i < 600; i += 60) {
-			int key = Node.locationToKey (Math.random());
-			Event.schedule (nodes[0], i + 10,
+			int key = Node.locationToKey (random.nextDouble());
+			Event.schedule (nodes[0].lane, nodes[0], i + 10,
 					Node.INSERT_CHK, key);
-			Event.schedule (nodes[NODES/2], i + 25,
-					Node.REQUEST_CHK, key);
-			key = Node.locationToKey (Math.random());
-			Event.schedule (nodes[0], i + 40,
+			Event.schedule (nodes[NODES/2].lane, nodes[NODES/2],
+					i + 25, Node.REQUEST_CHK, key);
+			key = Node.locationToKey (random.nextDouble());
+			Event.schedule (nodes[0].lane, nodes[0], i + 40,
 					Node.INSERT_SSK, key);
-			Event.schedule (nodes[NODES/2], i + 55,
-					Node.REQUEST_SSK, key);
+			Event.schedule (nodes[NODES/2].lane, nodes[NODES/2],
+					i + 55, Node.REQUEST_SSK, key);
 		}
 		// Run the simulation
-		Event.run();
+		sim.run();
 	}
 }
@@ -0,0 +1,226 @@
+// This software has been placed in the public domain by its author
+
+// Structured log records. Each record has a kind, which gives the format
+// of its message, plus the time, the event being dispatched, the node,
+// peer and search it concerns (-1 if none) and the values of the fields
+// in the format, for example:
+//
+//	private final static int SENDING = Trace.kind ("sending packet {}, {} bytes");
+//	...
+//	if (LOG) Event.trace (SENDING, node, peer, -1).add (seq).add (size).end();
+//
+// By default records are printed as text, in the same format as always.
+// Once a simulation's trace file is open (see Simulation.traceTo()) they
+// are written in binary instead, which takes a fraction of the time, and
+// TraceReader turns them back into text.
+//
+// Binary records are collected into chunks, which are handed to the
+// file's writer thread as they fill up. Each chunk defines the kinds it
+// uses, so chunks can be decoded independently. Each partition of a
+// parallel run writes its own chunks, so records are in time order within
+// a chunk but chunks from different partitions are interleaved. The
+// file indexes the chunks by time, so a reader can go straight to the
+// ones it needs (see TraceFile).
+
+package sim;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class Trace
+{
+	final static int CHUNK_SIZE = 1 << 20; // Bytes, excluding the header
+	// Block header, number of records, times of the first and last records
+	final static int CHUNK_HEADER = TraceFile.BLOCK_HEADER + 20;
+	final static byte DEFINE = 1, RECORD = 2; // Types of entry
+	final static byte LONG = 'L', DOUBLE = 'D', STRING = 'S'; // Fields
+	final static Charset UTF8 = Charset.forName ("UTF-8");
+	private final static int RECORD_HEADER = 32; // Bytes before the fields
+	
+	// Formats of the kinds of record, which are numbered in the order
+	// they're declared, so the numbers can change from one run to the next
+	private static ArrayList<String[]> formats = new ArrayList<String[]>();
+	
+	// Kinds are declared by static initialisers, which may run on
+	// several threads
+	public static synchronized int kind (String format)
+	{
+		formats.add (split (format));
+		return formats.size() - 1;
+	}
+	
+	static synchronized String[] format (int kind)
+	{
+		return formats.get (kind);
+	}
+	
+	// Split a format into the text before, between and after the fields
+	static String[] split (String format)
+	{
+		return format.split ("\\{\\}", -1);
+	}
+	
+	// Plain text messages, with no fields of their own
+	final static int TEXT = kind ("{}");
+	
+	private final Simulation simulation;
+	private final TraceFile file; // Null to print text
+	
+	// Binary records
+	private ByteBuffer buffer = null; // The current chunk
+	private int records = 0; // Records in the current chunk
+	private long firstTime = 0, lastTime = 0; // Of records in the chunk
+	private int chunks = 0; // Chunks written by this simulation
+	private int[] defined = new int[0]; // Last chunk to define each kind
+	private int fieldCount; // Position of the current record's field count
+	
+	// Text records
+	private StringBuilder text = null;
+	private String[] format; // The current record's format
+	private int fields; // Fields in the current record
+	private long lastEventId = -1; // Event that printed the last line
+	
+	Trace (Simulation simulation, TraceFile file)
+	{
+		this.simulation = simulation;
+		this.file = file;
+		if (file == null) text = new StringBuilder();
+		else buffer = file.buffer();
+	}
+	
+	// Start a record, then add the fields and end it
+	public Trace begin (int kind, int node, int peer, int id)
+	{
+		fields = 0;
+		if (file == null) {
+			format = format (kind);
+			text.setLength (0);
+			if (node != -1) text.append (node);
+			if (peer != -1) text.append (':').append (peer);
+			if (node != -1 || peer != -1) text.append (' ');
+			text.append (format[0]);
+			return this;
+		}
+		if (kind >= defined.length) {
+			int n = defined.length;
+			defined = Arrays.copyOf (defined, kind + 16);
+			Arrays.fill (defined, n, defined.length, -1);
+		}
+		if (defined[kind] != chunks) {
+			// First use of the kind in this chunk
+			byte[] f = join (format (kind)).getBytes (UTF8);
+			reserve (7 + f.length);
+			buffer.put (DEFINE);
+			buffer.putShort ((short) kind);
+			buffer.putInt (f.length);
+			buffer.put (f);
+			defined[kind] = chunks;
+		}
+		reserve (RECORD_HEADER);
+		lastTime = simulation.ticks();
+		if (records == 0) firstTime = lastTime;
+		buffer.put (RECORD);
+		buffer.putShort ((short) kind);
+		buffer.putLong (lastTime);
+		buffer.putLong (simulation.eventId());
+		buffer.putInt (node);
+		buffer.putInt (peer);
+		buffer.putInt (id);
+		fieldCount = buffer.position();
+		buffer.put ((byte) 0);
+		return this;
+	}
+	
+	public Trace add (long value)
+	{
+		if (file == null) return append (String.valueOf (value));
+		reserve (9);
+		buffer.put (LONG);
+		buffer.putLong (value);
+		fields++;
+		return this;
+	}
+	
+	public Trace add (double value)
+	{
+		if (file == null) return append (String.valueOf (value));
+		reserve (9);
+		buffer.put (DOUBLE);
+		buffer.putDouble (value);
+		fields++;
+		return this;
+	}
+	
+	public Trace add (Object value)
+	{
+		if (file == null) return append (String.valueOf (value));
+		byte[] b = String.valueOf (value).getBytes (UTF8);
+		reserve (5 + b.length);
+		buffer.put (STRING);
+		buffer.putInt (b.length);
+		buffer.put (b);
+		fields++;
+		return this;
+	}
+	
+	public void end()
+	{
+		if (file == null) {
+			// Print a blank line between events
+			long id = simulation.eventId();
+			if (simulation.blankLine && id != lastEventId)
+				System.out.println();
+			lastEventId = id;
+			System.out.print (simulation.time() + " " + text + "\n");
+			return;
+		}
+		buffer.put (fieldCount, (byte) fields);
+		records++;
+		if (buffer.position() >= CHUNK_HEADER + CHUNK_SIZE) flush();
+	}
+	
+	// Hand the current chunk to the writer thread
+	public void flush()
+	{
+		if (file == null || records == 0) return;
+		buffer.putInt (0, TraceFile.CHUNK);
+		buffer.putInt (4, buffer.position() - TraceFile.BLOCK_HEADER);
+		buffer.putInt (8, records);
+		buffer.putLong (12, firstTime);
+		buffer.putLong (20, lastTime);
+		buffer.flip();
+		file.write (buffer);
+		buffer = file.buffer();
+		records = 0;
+		chunks++;
+	}
+	
+	private Trace append (String value)
+	{
+		text.append (value);
+		if (++fields < format.length) text.append (format[fields]);
+		return this;
+	}
+	
+	// Make room for an entry - a record can't be split between chunks,
+	// so the buffer grows if necessary
+	private void reserve (int bytes)
+	{
+		if (buffer.remaining() >= bytes) return;
+		int capacity = buffer.position() + bytes;
+		ByteBuffer b = ByteBuffer.allocate
+			(Math.max (buffer.capacity() * 2, capacity));
+		buffer.flip();
+		b.put (buffer);
+		buffer = b;
+	}
+	
+	private static String join (String[] parts)
+	{
+		StringBuilder s = new StringBuilder (parts[0]);
+		for (int i = 1; i < parts.length; i++)
+			s.append ("{}").append (parts[i]);
+		return s.toString();
+	}
+}
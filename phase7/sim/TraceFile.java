@@ -0,0 +1,186 @@
+// This software has been placed in the public domain by its author
+
+// A binary trace file (see Trace), written by a background thread so the
+// simulation doesn't wait for the disk unless it gets too far ahead. Full
+// chunks are queued for the writer, which returns the empty buffers to a
+// pool for reuse.
+//
+// The file is a header followed by blocks, each of which starts with its
+// type and length. Chunks of records are interleaved with index blocks,
+// which list the offset and time range of each chunk since the previous
+// index block, and the offset of the previous index block. The file ends
+// with a footer giving the offset of the last index block, so a reader
+// can find every chunk without reading them (see TraceReader). A file
+// that wasn't closed has no footer, but its chunks can still be found by
+// skipping from one block header to the next.
+
+package sim;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+class TraceFile
+{
+	final static int MAGIC = 0x53545243; // "STRC"
+	final static int VERSION = 2;
+	final static int BLOCK_HEADER = 8; // Type and length of a block
+	final static int CHUNK = 1, INDEX = 2; // Types of block
+	final static int INDEX_INTERVAL = 64; // Chunks per index block
+	final static int FOOTER_MAGIC = 0x53544958; // "STIX"
+	final static int FOOTER = 12; // Offset of the last index, magic
+	private final static int QUEUED = 8; // Chunks waiting to be written
+	// Tells the writer to finish
+	private final static ByteBuffer END = ByteBuffer.allocate (0);
+	
+	private final FileChannel channel;
+	private final ArrayBlockingQueue<ByteBuffer> full
+		= new ArrayBlockingQueue<ByteBuffer> (QUEUED);
+	private final ArrayBlockingQueue<ByteBuffer> empty
+		= new ArrayBlockingQueue<ByteBuffer> (QUEUED * 2);
+	private final Thread writer;
+	private volatile IOException failure = null;
+	
+	// Owned by the writer thread
+	private long position = 8; // Offset of the next block
+	private long lastIndex = -1; // Offset of the last index block
+	private int chunks = 0; // Chunks since the last index block
+	private long[] offsets = new long[INDEX_INTERVAL];
+	private long[] firstTimes = new long[INDEX_INTERVAL];
+	private long[] lastTimes = new long[INDEX_INTERVAL];
+	
+	TraceFile (String filename) throws IOException
+	{
+		channel = new FileOutputStream (filename).getChannel();
+		ByteBuffer header = ByteBuffer.allocate (8);
+		header.putInt (MAGIC);
+		header.putInt (VERSION);
+		header.flip();
+		while (header.hasRemaining()) channel.write (header);
+		writer = new Thread ("trace writer") {
+			public void run()
+			{
+				work();
+			}
+		};
+		writer.setDaemon (true);
+		writer.start();
+	}
+	
+	// Return an empty buffer, positioned after the chunk header
+	ByteBuffer buffer()
+	{
+		ByteBuffer b = empty.poll();
+		if (b == null) b = ByteBuffer.allocate
+			(Trace.CHUNK_HEADER + Trace.CHUNK_SIZE + 4096);
+		b.clear();
+		b.position (Trace.CHUNK_HEADER);
+		return b;
+	}
+	
+	// Queue a chunk for writing - may be called by several threads
+	void write (ByteBuffer chunk)
+	{
+		if (failure != null) throw new RuntimeException (failure);
+		put (chunk);
+	}
+	
+	// Write the remaining chunks, the index and the footer, and close
+	// the file
+	void close() throws IOException
+	{
+		put (END);
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException (e);
+		}
+		try {
+			if (failure != null) throw failure;
+			if (chunks > 0 || lastIndex == -1) writeIndex();
+			ByteBuffer footer = ByteBuffer.allocate (FOOTER);
+			footer.putLong (lastIndex);
+			footer.putInt (FOOTER_MAGIC);
+			footer.flip();
+			writeBlock (footer);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	private void put (ByteBuffer b)
+	{
+		try {
+			full.put (b);
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException (e);
+		}
+	}
+	
+	// The main loop of the writer thread
+	private void work()
+	{
+		try {
+			while (true) {
+				ByteBuffer b = full.take();
+				if (b == END) return;
+				// Keep draining the queue after a failure, so
+				// the simulation doesn't block
+				if (failure == null) {
+					try {
+						writeChunk (b);
+					}
+					catch (IOException e) {
+						failure = e;
+					}
+				}
+				empty.offer (b);
+			}
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException (e);
+		}
+	}
+	
+	// Write a chunk and add it to the index
+	private void writeChunk (ByteBuffer b) throws IOException
+	{
+		offsets[chunks] = position;
+		firstTimes[chunks] = b.getLong (12);
+		lastTimes[chunks] = b.getLong (20);
+		chunks++;
+		writeBlock (b);
+		if (chunks == INDEX_INTERVAL) writeIndex();
+	}
+	
+	// Write an index block for the chunks since the last one
+	private void writeIndex() throws IOException
+	{
+		// Previous index, number of chunks, offset and times of each
+		ByteBuffer b
+			= ByteBuffer.allocate (BLOCK_HEADER + 12 + chunks * 24);
+		b.putInt (INDEX);
+		b.putInt (b.capacity() - BLOCK_HEADER);
+		b.putLong (lastIndex);
+		b.putInt (chunks);
+		for (int i = 0; i < chunks; i++) {
+			b.putLong (offsets[i]);
+			b.putLong (firstTimes[i]);
+			b.putLong (lastTimes[i]);
+		}
+		b.flip();
+		lastIndex = position;
+		writeBlock (b);
+		chunks = 0;
+	}
+	
+	private void writeBlock (ByteBuffer b) throws IOException
+	{
+		position += b.remaining();
+		while (b.hasRemaining()) channel.write (b);
+	}
+}
@@ -0,0 +1,336 @@
+// This software has been placed in the public domain by its author
+
+// Read the records in a binary trace file (see Trace) one at a time,
+// optionally only those in a window of time and about a given node, peer
+// or search. The file's index (see TraceFile) says which chunks overlap
+// the window, so the rest of the file isn't read, and records that don't
+// match the filters are skipped without decoding their fields. Chunks are
+// read in the order they were written, so records from different
+// partitions of a parallel run are interleaved chunk by chunk.
+//
+// Run on its own, prints a trace file in the same text format as an
+// untraced run would have printed:
+//
+//	java sim.TraceReader <file> [from <seconds>] [to <seconds>]
+//		[node <address>] [peer <address>] [search <id>] [blank]
+//
+// where "blank" prints a blank line between events.
+
+package sim;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TraceReader
+{
+	private final FileChannel channel;
+	private ByteBuffer chunk = ByteBuffer.allocate (0); // Current chunk
+	private int remaining = 0; // Records left in the current chunk
+	private ArrayList<String[]> formats = new ArrayList<String[]>();
+	
+	// The chunks, in the order they were written
+	private int chunks = 0;
+	private long[] offsets = new long[64];
+	private long[] firstTimes = new long[64];
+	private long[] lastTimes = new long[64];
+	private int nextChunk = 0;
+	
+	// Filters
+	private long from = Long.MIN_VALUE, to = Long.MAX_VALUE; // Ticks
+	private int nodeFilter = -1, peerFilter = -1, idFilter = -1;
+	
+	// The current record
+	public int kind;
+	public long time; // Ticks
+	public long event; // ID of the event being dispatched
+	public int node, peer, id; // -1 if none
+	private String[] format;
+	private Object[] fields = new Object[16];
+	private int count; // Number of fields
+	
+	public TraceReader (String filename) throws IOException
+	{
+		channel = new FileInputStream (filename).getChannel();
+		ByteBuffer header = read (0, 8);
+		if (header.getInt() != TraceFile.MAGIC)
+			throw new IOException ("not a trace file");
+		if (header.getInt() != TraceFile.VERSION)
+			throw new IOException ("unknown trace version");
+		if (!readIndex()) scanChunks();
+	}
+	
+	// Only return records from the given window of time (in seconds),
+	// including the start and excluding the end
+	public void seek (double start, double end)
+	{
+		from = Event.toTicks (start);
+		to = Event.toTicks (end);
+		nextChunk = 0;
+		remaining = 0;
+	}
+	
+	// Only return records about the given node, peer or search, or any
+	// if -1
+	public void filter (int node, int peer, int id)
+	{
+		nodeFilter = node;
+		peerFilter = peer;
+		idFilter = id;
+	}
+	
+	// Move to the next record, return false at the end of the file
+	public boolean next() throws IOException
+	{
+		while (true) {
+			while (remaining == 0) if (!nextChunk()) return false;
+			remaining--;
+			while (chunk.get() == Trace.DEFINE) {
+				int k = chunk.getShort();
+				while (formats.size() <= k) formats.add (null);
+				formats.set (k, Trace.split (string()));
+			}
+			kind = chunk.getShort();
+			time = chunk.getLong();
+			event = chunk.getLong();
+			node = chunk.getInt();
+			peer = chunk.getInt();
+			id = chunk.getInt();
+			count = chunk.get();
+			if (time < from || time >= to
+			|| (nodeFilter != -1 && node != nodeFilter)
+			|| (peerFilter != -1 && peer != peerFilter)
+			|| (idFilter != -1 && id != idFilter)) {
+				skipFields();
+				continue;
+			}
+			format = formats.get (kind);
+			for (int i = 0; i < count; i++) {
+				byte t = chunk.get();
+				if (t == Trace.LONG) fields[i] = chunk.getLong();
+				else if (t == Trace.DOUBLE) fields[i] = chunk.getDouble();
+				else if (t == Trace.STRING) fields[i] = string();
+				else throw new IOException ("bad field type " + t);
+			}
+			return true;
+		}
+	}
+	
+	// Return the number of fields in the current record
+	public int fields()
+	{
+		return count;
+	}
+	
+	// Return a field of the current record - a Long, Double or String
+	public Object field (int i)
+	{
+		return fields[i];
+	}
+	
+	// Return the current record's message, without the time
+	public String message()
+	{
+		StringBuilder s = new StringBuilder();
+		if (node != -1) s.append (node);
+		if (peer != -1) s.append (':').append (peer);
+		if (node != -1 || peer != -1) s.append (' ');
+		s.append (format[0]);
+		for (int i = 0; i < count; i++) {
+			s.append (fields[i]);
+			if (i + 1 < format.length) s.append (format[i + 1]);
+		}
+		return s.toString();
+	}
+	
+	// Return the current record as a line of text
+	public String toString()
+	{
+		return Event.toSeconds (time) + " " + message();
+	}
+	
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+	
+	// Read the next chunk that overlaps the window, return false if
+	// there are no more
+	private boolean nextChunk() throws IOException
+	{
+		while (nextChunk < chunks) {
+			int c = nextChunk++;
+			if (lastTimes[c] < from || firstTimes[c] >= to)
+				continue;
+			ByteBuffer header
+				= read (offsets[c], Trace.CHUNK_HEADER);
+			int length = header.getInt (4) + TraceFile.BLOCK_HEADER;
+			remaining = header.getInt (8);
+			if (chunk.capacity() < length)
+				chunk = ByteBuffer.allocate (length);
+			chunk.clear();
+			chunk.limit (length);
+			readFully (offsets[c], chunk);
+			chunk.position (Trace.CHUNK_HEADER);
+			// Kinds are defined afresh in each chunk
+			formats.clear();
+			return true;
+		}
+		return false;
+	}
+	
+	// Load the index by following the chain back from the footer, return
+	// false if there's no footer
+	private boolean readIndex() throws IOException
+	{
+		long size = channel.size();
+		if (size < 8 + TraceFile.FOOTER) return false;
+		ByteBuffer footer
+			= read (size - TraceFile.FOOTER, TraceFile.FOOTER);
+		long index = footer.getLong();
+		if (footer.getInt() != TraceFile.FOOTER_MAGIC) return false;
+		// The index blocks are read newest first
+		ArrayList<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+		while (index != -1) {
+			ByteBuffer header
+				= read (index, TraceFile.BLOCK_HEADER);
+			if (header.getInt() != TraceFile.INDEX)
+				throw new IOException ("bad index at " + index);
+			ByteBuffer b = read (index + TraceFile.BLOCK_HEADER,
+						header.getInt());
+			blocks.add (b);
+			index = b.getLong();
+		}
+		for (int i = blocks.size() - 1; i >= 0; i--) {
+			ByteBuffer b = blocks.get (i);
+			int n = b.getInt();
+			for (int j = 0; j < n; j++)
+				addChunk (b.getLong(), b.getLong(),
+					b.getLong());
+		}
+		return true;
+	}
+	
+	// Find the chunks of a file that wasn't closed by skipping from one
+	// block header to the next, ignoring an incomplete block at the end
+	private void scanChunks() throws IOException
+	{
+		long size = channel.size();
+		long offset = 8;
+		while (offset + Trace.CHUNK_HEADER <= size) {
+			ByteBuffer header = read (offset, Trace.CHUNK_HEADER);
+			int type = header.getInt();
+			long end = offset + TraceFile.BLOCK_HEADER;
+			end += header.getInt();
+			if (end > size) break;
+			if (type == TraceFile.CHUNK)
+				addChunk (offset, header.getLong (12),
+					header.getLong (20));
+			offset = end;
+		}
+	}
+	
+	private void addChunk (long offset, long firstTime, long lastTime)
+	{
+		if (chunks == offsets.length) {
+			offsets = Arrays.copyOf (offsets, chunks * 2);
+			firstTimes = Arrays.copyOf (firstTimes, chunks * 2);
+			lastTimes = Arrays.copyOf (lastTimes, chunks * 2);
+		}
+		offsets[chunks] = offset;
+		firstTimes[chunks] = firstTime;
+		lastTimes[chunks] = lastTime;
+		chunks++;
+	}
+	
+	// Skip the fields of the current record without decoding them
+	private void skipFields()
+	{
+		for (int i = 0; i < count; i++) {
+			byte type = chunk.get();
+			int length = 8;
+			if (type == Trace.STRING) length = chunk.getInt();
+			chunk.position (chunk.position() + length);
+		}
+	}
+	
+	private ByteBuffer read (long offset, int length) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.allocate (length);
+		readFully (offset, b);
+		b.flip();
+		return b;
+	}
+	
+	private void readFully (long offset, ByteBuffer b) throws IOException
+	{
+		while (b.hasRemaining()) {
+			int n = channel.read (b, offset);
+			if (n < 0) throw new EOFException();
+			offset += n;
+		}
+	}
+	
+	private String string()
+	{
+		int length = chunk.getInt();
+		String s = new String (chunk.array(), chunk.position(), length,
+					Trace.UTF8);
+		chunk.position (chunk.position() + length);
+		return s;
+	}
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: TraceReader <file> [from <seconds>] [to <seconds>]");
+		System.err.println ("       [node <address>] [peer <address>] [search <id>] [blank]");
+		System.exit (1);
+	}
+	
+	public static void main (String[] args) throws IOException
+	{
+		if (args.length < 1) usage();
+		double start = Double.NEGATIVE_INFINITY;
+		double end = Double.POSITIVE_INFINITY;
+		int node = -1, peer = -1, id = -1;
+		boolean blank = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals ("blank")) {
+				blank = true;
+				continue;
+			}
+			if (i + 1 == args.length) usage();
+			String value = args[++i];
+			if (args[i-1].equals ("from"))
+				start = Double.parseDouble (value);
+			else if (args[i-1].equals ("to"))
+				end = Double.parseDouble (value);
+			else if (args[i-1].equals ("node"))
+				node = Integer.parseInt (value);
+			else if (args[i-1].equals ("peer"))
+				peer = Integer.parseInt (value);
+			else if (args[i-1].equals ("search"))
+				id = Integer.parseInt (value);
+			else usage();
+		}
+		TraceReader r = new TraceReader (args[0]);
+		r.seek (start, end);
+		r.filter (node, peer, id);
+		long lastEvent = -1;
+		StringBuilder out = new StringBuilder();
+		while (r.next()) {
+			if (blank && r.event != lastEvent) out.append ('\n');
+			lastEvent = r.event;
+			out.append (r).append ('\n');
+			if (out.length() > 65536) {
+				System.out.print (out);
+				out.setLength (0);
+			}
+		}
+		System.out.print (out);
+		r.close();
+	}
+}
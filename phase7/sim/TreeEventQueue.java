@@ -0,0 +1,111 @@
+// This software has been placed in the public domain by its author
+
+// The original event queue: one Event object per event in a red-black tree.
+// Event objects are recycled, but the tree still allocates a node for each
+// event.
+
+package sim;
+import java.util.TreeSet;
+import java.util.Iterator;
+import java.util.ArrayList;
+
+class TreeEventQueue implements EventQueue
+{
+	private TreeSet<Event> events = new TreeSet<Event>();
+	private Event head = null; // Cached first event, or null
+	private ArrayList<Event> spare = new ArrayList<Event>(); // For reuse
+	
+	public void add (long time, long id, int lane, EventTarget target,
+				int code, Object data, long value)
+	{
+		Event e;
+		if (spare.isEmpty()) e = new Event();
+		else e = spare.remove (spare.size() - 1);
+		e.set (target, time, id, lane, code, data, value);
+		events.add (e);
+		if (head != null && e.compareTo (head) < 0) head = e;
+	}
+	
+	public int size()
+	{
+		return events.size();
+	}
+	
+	private Event head()
+	{
+		if (head == null) head = events.first();
+		return head;
+	}
+	
+	public long headTime()
+	{
+		return head().time;
+	}
+	
+	public long headId()
+	{
+		return head().id;
+	}
+	
+	public int headLane()
+	{
+		return head().lane;
+	}
+	
+	public EventTarget headTarget()
+	{
+		return head().target;
+	}
+	
+	public int headCode()
+	{
+		return head().code;
+	}
+	
+	public Object headData()
+	{
+		return head().data;
+	}
+	
+	public long headValue()
+	{
+		return head().value;
+	}
+	
+	public void pop()
+	{
+		release (events.pollFirst());
+		head = null;
+	}
+	
+	// Keep the event for reuse, without its target and payload
+	private void release (Event e)
+	{
+		e.target = null;
+		e.data = null;
+		spare.add (e);
+	}
+	
+	public int purge (LongHashSet ids)
+	{
+		int removed = 0;
+		Iterator<Event> i = events.iterator();
+		while (i.hasNext()) {
+			Event e = i.next();
+			if (ids.contains (e.id)) {
+				i.remove();
+				release (e);
+				removed++;
+			}
+		}
+		head = null;
+		return removed;
+	}
+	
+	public void clear()
+	{
+		events.clear();
+		spare.clear();
+		head = null;
+	}
+}
@@ -0,0 +1,92 @@
+// This software has been placed in the public domain by its author
+
+// Measure the cost of acks with a full congestion window: one node sends
+// blocks to another over a fast, long link whose bandwidth-delay product
+// is larger than CongestionWindow.MAX_CWIND, so once slow start is over
+// the sender's window and retransmission buffer stay at their largest.
+// Any loss slows the window's growth a great deal, so there's none unless
+// it's asked for.
+
+package sim;
+import sim.messages.Block;
+
+class WindowBench implements EventTarget
+{
+	private final static long serialVersionUID = 1L;
+	
+	private final static long SEED = 1;
+	private final static double SPEED = 10000000; // Bytes per second
+	private final static double LIMIT = 2000000; // Bytes per second
+	private final static double BURST = 8000; // Bytes
+	private final static double LATENCY = 0.5; // Seconds
+	private final static double RATE = 1200.0; // Blocks per second
+	private final static double INTERVAL = 0.005; // Seconds between sends
+	
+	private final Simulation simulation;
+	private final Node sender;
+	private final Peer peer; // The sender's peer
+	private long sent = 0; // Blocks sent
+	
+	private WindowBench (double lossRate)
+	{
+		simulation = new Simulation();
+		simulation.setSeed (SEED);
+		simulation.network.lossRate = lossRate;
+		Simulation.setCurrent (simulation);
+		sender = new Node (SPEED, SPEED);
+		Node receiver = new Node (SPEED, SPEED);
+		// Raise the bandwidth limit above what the largest window can
+		// use, keeping bursts small enough for the interface's queue
+		sender.bandwidth = new TokenBucket (LIMIT, BURST);
+		receiver.bandwidth = new TokenBucket (LIMIT, BURST);
+		sender.connectBothWays (receiver, LATENCY);
+		peer = sender.peers().get (0);
+		Event.schedule (sender.lane, this, 0.0, SEND, null);
+	}
+	
+	// Run for the given number of simulated seconds, return wall seconds
+	private double run (double duration)
+	{
+		simulation.setDuration (duration);
+		long start = System.nanoTime();
+		simulation.run();
+		return (System.nanoTime() - start) * 1e-9;
+	}
+	
+	public void handleEvent (int code, Object data)
+	{
+		for (int i = 0; i < RATE * INTERVAL; i++) {
+			peer.sendMessage (new Block ((int) (sent / 32),
+						(int) (sent % 32)));
+			sent++;
+		}
+		Event.schedule (sender.lane, this, INTERVAL, SEND, null);
+	}
+	
+	private final static int SEND = Event.code();
+	
+	private static void usage()
+	{
+		System.err.println ("Usage: WindowBench <duration> [loss rate]");
+		System.exit (1);
+	}
+	
+	public static void main (String[] args)
+	{
+		if (args.length < 1 || args.length > 2) usage();
+		double duration = Double.parseDouble (args[0]);
+		double lossRate = 0.0;
+		if (args.length == 2) lossRate = Double.parseDouble (args[1]);
+		// Warm up the JIT with a short run
+		new WindowBench (lossRate).run (duration / 10.0);
+		WindowBench b = new WindowBench (lossRate);
+		double secs = b.run (duration);
+		System.out.println (b.sent + " blocks, "
+			+ b.simulation.dispatched + " events, "
+			+ b.simulation.retransmissions + " retransmissions, "
+			+ b.simulation.dropped + " dropped, "
+			+ secs + " seconds, "
+			+ (long) (b.simulation.dispatched / secs)
+			+ " events/second");
+	}
+}
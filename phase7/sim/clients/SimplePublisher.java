@@ -7,28 +7,34 @@ package sim.clients;
 import sim.Event;
 import sim.EventTarget;
 import sim.Node;
+import sim.Rng;
+import sim.Simulation;
 import sim.messages.*;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 public class SimplePublisher implements Client, EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
 	// FIXME: what fraction of keys are CHKs in real life?
 	private final static double FRACTION_CHKS = 0.5;
 	
-	public final double rate; // Inserts per second
+	public double rate; // Inserts per second
 	private int inserts; // Publish this many inserts (0 for unlimited)
 	private Node node; // The publisher's node
-	private HashSet<Node> readers; // The readers' nodes
+	private LinkedHashSet<Node> readers; // The readers' nodes
+	private Rng random; // The workload's random numbers
 	
 	public SimplePublisher (double rate, int inserts, Node node)
 	{
 		this.rate = rate;
 		this.inserts = inserts;
 		this.node = node;
-		readers = new HashSet<Node>();
+		readers = new LinkedHashSet<Node>();
+		random = Simulation.current().newStream();
 		// Schedule the first insert
-		double delay = -Math.log (Math.random()) / rate;
-		Event.schedule (this, delay, PUBLISH, null);
+		double delay = -Math.log (random.nextDouble()) / rate;
+		Event.schedule (node.lane, this, delay, PUBLISH, null);
 	}
 	
 	public boolean addReader (Node n)
@@ -39,29 +45,29 @@ public class SimplePublisher implements Client, EventTarget
 	private void publish()
 	{
 		// Randomly choose between publishing a CHK and an SSK
-		if (Math.random() < FRACTION_CHKS) publishChk();
+		if (random.nextDouble() < FRACTION_CHKS) publishChk();
 		else publishSsk();
 	}
 	
 	private void publishChk()
 	{
 		// Insert a random key
-		int key = Node.locationToKey (Math.random());
+		int key = Node.locationToKey (random.nextDouble());
 		node.generateChkInsert (key, this);
 		// Schedule the next insert after an exp. distributed delay
 		if (inserts > 0 && --inserts == 0) return;
-		double delay = -Math.log (Math.random()) / rate;
+		double delay = -Math.log (random.nextDouble()) / rate;
 		Event.schedule (this, delay, PUBLISH, null);
 	}
 	
 	private void publishSsk()
 	{
 		// Insert a random key
-		int key = Node.locationToKey (Math.random());
+		int key = Node.locationToKey (random.nextDouble());
 		node.generateSskInsert (key, 0, this);
 		// Schedule the next insert after an exp. distributed delay
 		if (inserts > 0 && --inserts == 0) return;
-		double delay = -Math.log (Math.random()) / rate;
+		double delay = -Math.log (random.nextDouble()) / rate;
 		Event.schedule (this, delay, PUBLISH, null);
 	}
 	
@@ -71,11 +77,13 @@ public class SimplePublisher implements Client, EventTarget
 	{
 		// Inform each reader after an average of ten minutes
 		for (Node n : readers) {
-			double d = 595.0 + Math.random() * 10.0;
+			double d = 595.0 + random.nextDouble() * 10.0;
 			if (s instanceof ChkInsert)
-				Event.schedule (n, d, Node.REQUEST_CHK, s.key);
+				Event.schedule (n.lane, n, d,
+						Node.REQUEST_CHK, s.key);
 			else if (s instanceof SskInsert)
-				Event.schedule (n, d, Node.REQUEST_SSK, s.key);
+				Event.schedule (n.lane, n, d,
+						Node.REQUEST_SSK, s.key);
 		}
 	}
 	
@@ -5,26 +5,33 @@
 package sim.handlers;
 import sim.*;
 import sim.messages.*;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.HashMap;
 
 public class ChkInsertHandler extends MessageHandler implements EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
 	private int inState = STARTED; // State of incoming transfer
-	private HashSet<Peer> receivers; // Peers that should receive data
+	private LinkedHashSet<Peer> receivers; // Peers that should receive data
 	private Block[] blocks; // Store incoming blocks for forwarding
 	private int blocksReceived = 0;
+	private long dataTimer = -1; // Pending data timeout event
+	private long transferInTimer = -1; // Pending transfer in timeout
+	private HashMap<Peer,Long> transferOutTimers; // By receiver
 	
 	public ChkInsertHandler (ChkInsert i, Node node, Peer prev)
 	{
 		super (i, node, prev);
-		receivers = new HashSet<Peer>();
+		receivers = new LinkedHashSet<Peer>();
 		blocks = new Block[32];
+		transferOutTimers = new HashMap<Peer,Long>();
 	}
 	
 	public void start()
 	{
 		// Wait 10 seconds for the incoming transfer to start
-		Event.schedule (this, 10.0, DATA_TIMEOUT, null);
+		dataTimer = Event.schedule (this, 10.0, DATA_TIMEOUT, null);
 	}
 	
 	public void handleMessage (Message m, Peer src)
@@ -34,7 +41,7 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 				handleDataInsert ((DataInsert) m);
 			else if (m instanceof Block)
 				handleBlock ((Block) m);
-			else if (LOG) node.log ("unexpected type for " + m);
+			else if (LOG) log ("unexpected type for " + m);
 		}
 		else if (src == next) {
 			if (m instanceof Accepted)
@@ -49,20 +56,22 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 				handleInsertReply ((InsertReply) m);
 			else if (m instanceof TransfersCompleted)
 				handleCompleted ((TransfersCompleted) m, src);
-			else if (LOG) node.log ("unexpected type for " + m);
+			else if (LOG) log ("unexpected type for " + m);
 		}
 		else if (receivers.contains (src)) {
 			if (m instanceof TransfersCompleted)
 				handleCompleted ((TransfersCompleted) m, src);
-			else if (LOG) node.log ("unexpected type for " + m);
+			else if (LOG) log ("unexpected type for " + m);
 		}
-		else if (LOG) node.log ("unexpected source for " + m);
+		else if (LOG) log ("unexpected source for " + m);
 	}
 	
 	private void handleDataInsert (DataInsert di)
 	{
-		if (inState != STARTED && LOG) node.log (di + " out of order");
+		if (inState != STARTED && LOG) log (di + " out of order");
 		inState = TRANSFERRING;
+		Event.cancel (dataTimer);
+		dataTimer = -1;
 		// Start the search
 		forwardSearch();
 		// If we have all the blocks and the headers, consider finishing
@@ -71,13 +80,14 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 			considerFinishing();
 		}
 		// Wait for transfer to complete (FIXME: check real timeout)
-		else Event.schedule (this, 120.0, TRANSFER_IN_TIMEOUT, null);
+		else transferInTimer = Event.schedule (this, 120.0,
+						TRANSFER_IN_TIMEOUT, null);
 	}
 	
 	private void handleBlock (Block b)
 	{
 		if (inState != TRANSFERRING && LOG)
-			node.log (b + " out of order");
+			log (b + " out of order");
 		if (blocks[b.index] != null) return; // Ignore duplicates
 		blocks[b.index] = b;
 		blocksReceived++;
@@ -86,6 +96,8 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 		// If we have all the blocks and the headers, consider finishing
 		if (blocksReceived == 32 && inState == TRANSFERRING) {
 			inState = COMPLETED;
+			Event.cancel (transferInTimer);
+			transferInTimer = -1;
 			considerFinishing();
 		}
 	}
@@ -93,16 +105,19 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 	private void handleCompleted (TransfersCompleted tc, Peer src)
 	{
 		receivers.remove (src);
+		cancelTransferOutTimer (src);
 		considerFinishing();
 	}
 	
 	private void handleAccepted (Accepted a)
 	{
-		if (searchState != SENT && LOG) node.log (a + " out of order");
+		if (searchState != SENT && LOG) log (a + " out of order");
 		searchState = ACCEPTED;
 		next.successNotOverload(); // Reset the backoff length
+		Event.cancel (acceptedTimer);
+		acceptedTimer = -1;
 		// Wait 120 seconds for a reply to the search
-		Event.schedule (this, 120.0, SEARCH_TIMEOUT, next);
+		searchTimer = Event.schedule (this, 120.0, SEARCH_TIMEOUT, next);
 		// Add the next hop to the list of receivers
 		receivers.add (next);
 		next.sendMessage (new DataInsert (id));
@@ -110,29 +125,31 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 		for (int i = 0; i < 32; i++)
 			if (blocks[i] != null) next.sendMessage (blocks[i]);
 		// Wait for TransfersCompleted (FIXME: check real timeout)
-		Event.schedule (this, 240.0, TRANSFER_OUT_TIMEOUT, next);
+		cancelTransferOutTimer (next);
+		transferOutTimers.put (next, Event.schedule (this, 240.0,
+					TRANSFER_OUT_TIMEOUT, next));
 	}
 	
 	private void handleInsertReply (InsertReply ir)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (ir + " out of order");
+			log (ir + " out of order");
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else prev.sendMessage (ir); // Forward the message
 		finish();
 	}
-
+	
 	protected void sendReply()
 	{
 		// We count this as a remote success because the insert has
 		// run out of hops, so it must have left the node at some point
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else prev.sendMessage (new InsertReply (id));
@@ -143,9 +160,15 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 		return new ChkInsert (id, key, closest, htl);
 	}
 	
-	protected void scheduleAcceptedTimeout (Peer next)
+	protected long scheduleAcceptedTimeout (Peer next)
+	{
+		return Event.schedule (this, 10.0, ACCEPTED_TIMEOUT, next);
+	}
+	
+	private void cancelTransferOutTimer (Peer p)
 	{
-		Event.schedule (this, 10.0, ACCEPTED_TIMEOUT, next);
+		Long timer = transferOutTimers.remove (p);
+		if (timer != null) Event.cancel (timer);
 	}
 	
 	protected void finish()
@@ -153,6 +176,7 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 		// Don't really finish until the incoming transfer
 		// and all outgoing transfers are complete
 		searchState = COMPLETED;
+		cancelSearchTimers();
 		if (inState == COMPLETED && receivers.isEmpty()) reallyFinish();
 	}
 	
@@ -160,10 +184,17 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 	{
 		searchState = COMPLETED;
 		inState = COMPLETED;
+		cancelSearchTimers();
+		Event.cancel (dataTimer);
+		Event.cancel (transferInTimer);
+		dataTimer = transferInTimer = -1;
+		for (long timer : transferOutTimers.values())
+			Event.cancel (timer);
+		transferOutTimers.clear();
 		node.cacheChk (key);
 		node.storeChk (key);
 		if (prev == null) {
-			if (LOG) node.log (this + " completed");
+			if (LOG) log (this + " completed");
 		}
 		else prev.sendMessage (new TransfersCompleted (id));
 		node.removeMessageHandler (id);
@@ -183,8 +214,9 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 	// Event callback
 	private void dataTimeout()
 	{
+		dataTimer = -1;
 		if (inState != STARTED) return;
-		if (LOG) node.log (this + " data timeout from " + prev);
+		if (LOG) log (this + " data timeout from " + prev);
 		prev.sendMessage (new TransfersCompleted(id));
 		reallyFinish();
 	}
@@ -192,8 +224,9 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 	// Event callback
 	private void transferInTimeout()
 	{
+		transferInTimer = -1;
 		if (inState != TRANSFERRING) return;
-		if (LOG) node.log (this + " transfer timeout from " + prev);
+		if (LOG) log (this + " transfer timeout from " + prev);
 		prev.sendMessage (new TransfersCompleted(id));
 		reallyFinish();
 	}
@@ -201,8 +234,9 @@ public class ChkInsertHandler extends MessageHandler implements EventTarget
 	// Event callback
 	private void transferOutTimeout (Peer p)
 	{
+		transferOutTimers.remove (p);
 		if (!receivers.remove (p)) return;
-		if (LOG) node.log (this + " transfer timeout to " + p);
+		if (LOG) log (this + " transfer timeout to " + p);
 		// FIXME: should we back off?
 		considerFinishing();
 	}
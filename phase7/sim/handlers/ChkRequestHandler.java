@@ -8,6 +8,8 @@ import sim.messages.*;
 
 public class ChkRequestHandler extends RequestHandler
 {
+	private final static long serialVersionUID = 1L;
+	
 	private boolean[] blocks; // Keep track of blocks received
 	private int blocksReceived = 0;
 	
@@ -20,7 +22,7 @@ public class ChkRequestHandler extends RequestHandler
 	public void handleMessage (Message m, Peer src)
 	{
 		if (src != next) {
-			if (LOG) node.log ("unexpected source for " + m);
+			if (LOG) log ("unexpected source for " + m);
 		}
 		else if (m instanceof Accepted)
 			handleAccepted ((Accepted) m);
@@ -36,47 +38,49 @@ public class ChkRequestHandler extends RequestHandler
 			handleChkDataFound ((ChkDataFound) m);
 		else if (m instanceof Block)
 			handleBlock ((Block) m);
-		else if (LOG) node.log ("unexpected type for " + m);
+		else if (LOG) log ("unexpected type for " + m);
 	}
 	
 	private void handleChkDataFound (ChkDataFound df)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (df + " out of order");
+			log (df + " out of order");
 		searchState = TRANSFERRING;
+		cancelSearchTimers(); // Search timeout no longer applies
 		if (prev != null) prev.sendMessage (df); // Forward the message
 		// If we have all the blocks and the headers, cache the data
 		if (blocksReceived == 32) {
 			node.cacheChk (key);
 			if (prev == null) {
-				if (LOG) node.log (this+ " succeeded remotely");
-				Node.succeededRemotely++;
+				if (LOG) log (this+ " succeeded remotely");
+				succeededRemotely();
 				node.increaseSearchRate();
 			}
 			finish();
 		}
 		// Wait for the transfer to complete (FIXME: check real timeout)
-		else Event.schedule (this, 120.0, TRANSFER_TIMEOUT, next);
+		else transferTimer = Event.schedule (this, 120.0,
+						TRANSFER_TIMEOUT, next);
 	}
 	
 	private void handleBlock (Block b)
 	{
 		if (searchState != TRANSFERRING && LOG)
-			node.log (b + " out of order");
+			log (b + " out of order");
 		if (blocks[b.index]) return; // Ignore duplicates
 		blocks[b.index] = true;
 		blocksReceived++;
 		// Forward the block
 		if (prev != null) {
-			if (LOG) node.log ("forwarding " + b);
+			if (LOG) log ("forwarding " + b);
 			prev.sendMessage (b);
 		}
 		// If we have all the blocks and the headers, cache the data
 		if (blocksReceived == 32 && searchState == TRANSFERRING) {
 			node.cacheChk (key);
 			if (prev == null) {
-				if (LOG) node.log (this+ " succeeded remotely");
-				Node.succeededRemotely++;
+				if (LOG) log (this+ " succeeded remotely");
+				succeededRemotely();
 				node.increaseSearchRate();
 			}
 			finish();
@@ -6,9 +6,12 @@ package sim.handlers;
 import sim.*;
 import sim.messages.*;
 import java.util.LinkedList;
+import java.io.Serializable;
 
-public abstract class MessageHandler
+public abstract class MessageHandler implements Serializable
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static boolean LOG = false;
 	
 	// State machine
@@ -28,6 +31,9 @@ public abstract class MessageHandler
 	protected Peer next = null; // The (current) next hop of the search
 	protected LinkedList<Peer> nexts; // Candidates for the next hop
 	protected int searchState = STARTED; // The state of the search
+	protected long acceptedTimer = -1; // Pending accepted timeout event
+	protected long searchTimer = -1; // Pending search timeout event
+	protected final double started; // When the search reached this node
 	
 	public MessageHandler (Search s, Node node, Peer prev)
 	{
@@ -37,18 +43,27 @@ public abstract class MessageHandler
 		htl = s.htl;
 		this.node = node;
 		this.prev = prev;
+		started = Event.time();
 		nexts = new LinkedList<Peer> (node.peers());
 		nexts.remove (prev);
 		// If this is the closest location seen so far, reset htl
 		double target = Node.keyToLocation (key);
 		if (Node.distance (target, node.location)
 		< Node.distance (target, closest)) {
-			if (LOG) node.log ("resetting htl of " + this);
+			if (LOG) log ("resetting htl of " + this);
 			closest = node.location;
 			htl = Search.MAX_HTL;
 		}
 	}
 	
+	// Count a search that started at this node and succeeded elsewhere
+	protected void succeededRemotely()
+	{
+		Simulation sim = Simulation.current();
+		sim.succeededRemotely++;
+		sim.searchLatency += Event.time() - started;
+	}
+	
 	// Remove a peer from the list of candidates for the next hop
 	public void removeNextHop (Peer p)
 	{
@@ -58,10 +73,11 @@ public abstract class MessageHandler
 	// Forward the search to the closest remaining peer, if any
 	public void forwardSearch()
 	{
+		cancelSearchTimers(); // Moving on from the current next hop
 		next = null;
 		// If the search has run out of hops, reply and finish
 		if (htl == 0) {
-			if (LOG) node.log (this + " has no hops remaining");
+			if (LOG) log (this + " has no hops remaining");
 			sendReply();
 			finish();
 			return;
@@ -69,10 +85,10 @@ public abstract class MessageHandler
 		// Find the closest remaining peer
 		next = closestPeer();
 		if (next == null) {
-			if (LOG) node.log ("route not found for " + this);
+			if (LOG) log ("route not found for " + this);
 			if (prev == null) {
-				if (LOG) node.log (this + " failed (rnf)");
-				Node.failed++;
+				if (LOG) log (this + " failed (rnf)");
+				Simulation.current().failed++;
 				node.increaseSearchRate(); // Yes, increase
 			}
 			else prev.sendMessage (new RouteNotFound (id, htl));
@@ -84,25 +100,33 @@ public abstract class MessageHandler
 		if (Node.distance (target, next.location)
 		>= Node.distance (target, closest))
 			htl = node.decrementHtl (htl);
-		if (LOG) node.log (this + " has htl " + htl);
+		if (LOG) log (this + " has htl " + htl);
 		// Consume a token
-		if (Node.useTokens) next.removeTokensOut (1);
+		if (node.useTokens) next.removeTokensOut (1);
 		// Forward the search
-		if (LOG) node.log ("forwarding " +this+ " to " + next.address);
+		if (LOG) log ("forwarding " +this+ " to " + next.address);
 		next.sendMessage (makeSearchMessage());
 		nexts.remove (next);
 		searchState = SENT;
 		// Wait for the next hop to accept the search
-		scheduleAcceptedTimeout (next);
+		acceptedTimer = scheduleAcceptedTimeout (next);
+	}
+	
+	// Cancel the accepted and search timeouts for the current next hop
+	protected void cancelSearchTimers()
+	{
+		Event.cancel (acceptedTimer);
+		Event.cancel (searchTimer);
+		acceptedTimer = searchTimer = -1;
 	}
 	
 	// Find the closest remaining peer, if any
 	private Peer closestPeer()
 	{
-		Peer p = closestPeer (Node.useBackoff);
+		Peer p = closestPeer (node.useBackoff);
 		// If all peers are backed off, try again ignoring backoff
-		if (p == null && Node.useBackoff) {
-			if (LOG) node.log ("considering backed off peers");
+		if (p == null && node.useBackoff) {
+			if (LOG) log ("considering backed off peers");
 			return closestPeer (false);
 		}
 		else return p;
@@ -115,12 +139,12 @@ public abstract class MessageHandler
 		double closestDist = Double.POSITIVE_INFINITY;
 		Peer closestPeer = null;
 		for (Peer peer : nexts) {
-			if (Node.useTokens && peer.getTokensOut() == 0) {
-				if (LOG) node.log ("no tokens for " + peer);
+			if (node.useTokens && peer.getTokensOut() == 0) {
+				if (LOG) log ("no tokens for " + peer);
 				continue;
 			}
 			if (useBackoff && now < peer.backoffUntil) {
-				if (LOG) node.log ("backed off from " + peer
+				if (LOG) log ("backed off from " + peer
 					+ " until " + peer.backoffUntil);
 				continue;
 			}
@@ -135,7 +159,7 @@ public abstract class MessageHandler
 	
 	protected void handleRejectedLoop (RejectedLoop rl)
 	{
-		if (searchState != SENT && LOG) node.log (rl + " out of order");
+		if (searchState != SENT && LOG) log (rl + " out of order");
 		next.successNotOverload(); // Reset the backoff length
 		forwardSearch();
 	}
@@ -155,7 +179,7 @@ public abstract class MessageHandler
 	protected void handleRouteNotFound (RouteNotFound rnf)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (rnf + " out of order");
+			log (rnf + " out of order");
 		// Use the remaining htl to try another peer
 		if (rnf.htl < htl) htl = rnf.htl;
 		forwardSearch();
@@ -164,9 +188,10 @@ public abstract class MessageHandler
 	// Event callback
 	protected void acceptedTimeout (Peer p)
 	{
+		acceptedTimer = -1;
 		if (p != next) return; // We've already moved on to another peer
 		if (searchState != SENT) return;
-		if (LOG) node.log (this + " accepted timeout for " + p);
+		if (LOG) log (this + " accepted timeout for " + p);
 		p.localRejectedOverload(); // Back off from p
 		// Tell the sender to slow down
 		if (prev == null) node.decreaseSearchRate();
@@ -178,23 +203,30 @@ public abstract class MessageHandler
 	// Event callback
 	protected void searchTimeout (Peer p)
 	{
+		searchTimer = -1;
 		if (p != next) return; // We've already moved on to another peer
 		if (searchState != ACCEPTED) return;
-		if (LOG) node.log (this + " search timeout for " + p);
+		if (LOG) log (this + " search timeout for " + p);
 		p.localRejectedOverload(); // Back off from p
 		// Tell the sender to slow down
 		if (prev == null) {
-			if (LOG) node.log (this + " failed (search)");
-			Node.failed++;
+			if (LOG) log (this + " failed (search)");
+			Simulation.current().failed++;
 			node.decreaseSearchRate();
 		}
 		else prev.sendMessage (new RejectedOverload (id, false));
 		finish();
 	}
 	
+	// Log a message about this search
+	protected void log (String message)
+	{
+		node.log (message, id);
+	}
+	
 	public abstract void handleMessage (Message m, Peer src);
 	protected abstract void sendReply();
 	protected abstract Search makeSearchMessage();
-	protected abstract void scheduleAcceptedTimeout (Peer next);
+	protected abstract long scheduleAcceptedTimeout (Peer next);
 	protected abstract void finish();
 }
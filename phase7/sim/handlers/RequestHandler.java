@@ -9,6 +9,10 @@ import sim.messages.*;
 public abstract class RequestHandler extends MessageHandler
 					implements EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
+	protected long transferTimer = -1; // Pending transfer timeout event
+	
 	public RequestHandler (Search s, Node node, Peer prev)
 	{
 		super (s, node, prev);
@@ -21,20 +25,22 @@ public abstract class RequestHandler extends MessageHandler
 	
 	protected void handleAccepted (Accepted a)
 	{
-		if (searchState != SENT && LOG) node.log (a + " out of order");
+		if (searchState != SENT && LOG) log (a + " out of order");
 		searchState = ACCEPTED;
 		next.successNotOverload(); // Reset the backoff length
+		Event.cancel (acceptedTimer);
+		acceptedTimer = -1;
 		// Wait 60 seconds for a reply to the search
-		Event.schedule (this, 60.0, SEARCH_TIMEOUT, next);
+		searchTimer = Event.schedule (this, 60.0, SEARCH_TIMEOUT, next);
 	}
 	
 	protected void handleDataNotFound (DataNotFound dnf)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (dnf + " out of order");
+			log (dnf + " out of order");
 		if (prev == null) {
-			if (LOG) node.log (this + " failed (dnf)");
-			Node.failed++;
+			if (LOG) log (this + " failed (dnf)");
+			Simulation.current().failed++;
 		}
 		else prev.sendMessage (dnf); // Forward the message
 		finish();
@@ -43,31 +49,35 @@ public abstract class RequestHandler extends MessageHandler
 	protected void sendReply()
 	{
 		if (prev == null) {
-			if (LOG) node.log (this + " failed (dnf)");
-			Node.failed++;
+			if (LOG) log (this + " failed (dnf)");
+			Simulation.current().failed++;
 		}
 		else prev.sendMessage (new DataNotFound (id));
 	}
 	
-	protected void scheduleAcceptedTimeout (Peer next)
+	protected long scheduleAcceptedTimeout (Peer next)
 	{
-		Event.schedule (this, 5.0, ACCEPTED_TIMEOUT, next);
+		return Event.schedule (this, 5.0, ACCEPTED_TIMEOUT, next);
 	}
 	
 	protected void finish()
 	{
 		searchState = COMPLETED;
+		cancelSearchTimers();
+		Event.cancel (transferTimer);
+		transferTimer = -1;
 		node.removeMessageHandler (id);
 	}
 	
 	// Event callback
 	protected void transferTimeout (Peer p)
 	{
+		transferTimer = -1;
 		if (searchState != TRANSFERRING) return;
-		if (LOG) node.log (this + " transfer timeout from " + p);
+		if (LOG) log (this + " transfer timeout from " + p);
 		if (prev == null) {
-			if (LOG) node.log (this + " failed (xfer)");
-			Node.failed++;
+			if (LOG) log (this + " failed (xfer)");
+			Simulation.current().failed++;
 		}
 		finish();
 	}
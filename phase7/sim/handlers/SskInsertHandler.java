@@ -9,8 +9,11 @@ import java.util.HashSet;
 
 public class SskInsertHandler extends MessageHandler implements EventTarget
 {
+	private final static long serialVersionUID = 1L;
+	
 	private SskPubKey pubKey = null; 
 	private int data; // The data being inserted
+	private long keyTimer = -1; // Pending key timeout event
 	
 	public SskInsertHandler (SskInsert i, Node node,
 				Peer prev, boolean needPubKey)
@@ -24,7 +27,7 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	{
 		if (pubKey == null) {
 			// Wait 10 seconds for the previous hop to send the key
-			Event.schedule (this, 10.0, KEY_TIMEOUT, null);
+			keyTimer = Event.schedule (this, 10.0, KEY_TIMEOUT, null);
 		}
 		else {
 			checkCollision();
@@ -37,9 +40,9 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	{
 		Integer old = node.fetchSsk (key);
 		if (old != null && old.intValue() != data) {
-			if (LOG) node.log (this + " collided");
+			if (LOG) log (this + " collided");
 			if (prev == null) {
-				if (LOG) node.log (this + " collided locally");
+				if (LOG) log (this + " collided locally");
 			}
 			else prev.sendMessage (new SskDataFound (id, old));
 			// Continue inserting the old data
@@ -53,7 +56,7 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 		if (src == prev) {
 			if (m instanceof SskPubKey)
 				handleSskPubKey ((SskPubKey) m);
-			else if (LOG) node.log ("unexpected type for " + m);
+			else if (LOG) log ("unexpected type for " + m);
 		}
 		else if (src == next) {
 			if (m instanceof SskAccepted)
@@ -68,15 +71,17 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 				handleCollision ((SskDataFound) m);
 			else if (m instanceof InsertReply)
 				handleInsertReply ((InsertReply) m);
-			else if (LOG) node.log ("unexpected type for " + m);
+			else if (LOG) log ("unexpected type for " + m);
 		}
-		else if (LOG) node.log ("unexpected source for " + m);
+		else if (LOG) log ("unexpected source for " + m);
 	}
 	
 	private void handleSskPubKey (SskPubKey pk)
 	{
 		if (searchState != STARTED && LOG)
-			node.log (pk + " out of order");
+			log (pk + " out of order");
+		Event.cancel (keyTimer);
+		keyTimer = -1;
 		pubKey = pk;
 		checkCollision();
 		forwardSearch();
@@ -84,11 +89,13 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	
 	private void handleSskAccepted (SskAccepted sa)
 	{
-		if (searchState != SENT && LOG) node.log (sa + " out of order");
+		if (searchState != SENT && LOG) log (sa + " out of order");
 		searchState = ACCEPTED;
 		next.successNotOverload(); // Reset the backoff length
+		Event.cancel (acceptedTimer);
+		acceptedTimer = -1;
 		// Wait 60 seconds for a reply to the search
-		Event.schedule (this, 60.0, SEARCH_TIMEOUT, next);
+		searchTimer = Event.schedule (this, 60.0, SEARCH_TIMEOUT, next);
 		// Send the public key if requested
 		if (sa.needPubKey) next.sendMessage (pubKey);
 	}
@@ -96,9 +103,9 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	private void handleCollision (SskDataFound sdf)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (sdf + " out of order");
+			log (sdf + " out of order");
 		if (prev == null) {
-			if (LOG) node.log (this + " collided");
+			if (LOG) log (this + " collided");
 		}
 		else prev.sendMessage (sdf); // Forward the message
 		data = sdf.data; // Is this safe?
@@ -107,10 +114,10 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	private void handleInsertReply (InsertReply ir)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (ir + " out of order");
+			log (ir + " out of order");
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else prev.sendMessage (ir); // Forward the message
@@ -122,8 +129,8 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 		// We count this as a remote success because the insert has
 		// run out of hops, so it must have left the node at some point
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else prev.sendMessage (new InsertReply (id));
@@ -134,14 +141,17 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 		return new SskInsert (id, key, data, closest, htl);
 	}
 	
-	protected void scheduleAcceptedTimeout (Peer next)
+	protected long scheduleAcceptedTimeout (Peer next)
 	{
-		Event.schedule (this, 10.0, ACCEPTED_TIMEOUT, next);
+		return Event.schedule (this, 10.0, ACCEPTED_TIMEOUT, next);
 	}
 	
 	protected void finish()
 	{
 		searchState = COMPLETED;
+		cancelSearchTimers();
+		Event.cancel (keyTimer);
+		keyTimer = -1;
 		node.cachePubKey (key);
 		node.storePubKey (key);
 		node.cacheSsk (key, data);
@@ -157,8 +167,9 @@ public class SskInsertHandler extends MessageHandler implements EventTarget
 	// Event callback
 	private void keyTimeout()
 	{
+		keyTimer = -1;
 		if (searchState != STARTED) return;
-		if (LOG) node.log (this + " key timeout for " + prev);
+		if (LOG) log (this + " key timeout for " + prev);
 		finish();
 	}
 	
@@ -8,6 +8,8 @@ import sim.messages.*;
 
 public class SskRequestHandler extends RequestHandler
 {
+	private final static long serialVersionUID = 1L;
+	
 	private boolean needPubKey; // Ask the next hop for the public key?
 	private SskPubKey pubKey = null;
 	private SskDataFound dataFound = null;
@@ -23,7 +25,7 @@ public class SskRequestHandler extends RequestHandler
 	public void handleMessage (Message m, Peer src)
 	{
 		if (src != next) {
-			if (LOG) node.log ("unexpected source for " + m);
+			if (LOG) log ("unexpected source for " + m);
 		}
 		else if (m instanceof Accepted)
 			handleAccepted ((Accepted) m);
@@ -39,18 +41,18 @@ public class SskRequestHandler extends RequestHandler
 			handleSskDataFound ((SskDataFound) m);
 		else if (m instanceof SskPubKey)
 			handleSskPubKey ((SskPubKey) m);
-		else if (LOG) node.log ("unexpected type for " + m);
+		else if (LOG) log ("unexpected type for " + m);
 	}
 	
 	private void handleSskDataFound (SskDataFound df)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (df + " out of order");
+			log (df + " out of order");
 		dataFound = df;
 		if (pubKey == null) return; // Keep waiting
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else {
@@ -65,12 +67,12 @@ public class SskRequestHandler extends RequestHandler
 	private void handleSskPubKey (SskPubKey pk)
 	{
 		if (searchState != ACCEPTED && LOG)
-			node.log (pk + " out of order");
+			log (pk + " out of order");
 		pubKey = pk;
 		if (dataFound == null) return; // Keep waiting
 		if (prev == null) {
-			if (LOG) node.log (this + " succeeded remotely");
-			Node.succeededRemotely++;
+			if (LOG) log (this + " succeeded remotely");
+			succeededRemotely();
 			node.increaseSearchRate();
 		}
 		else {
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class Accepted extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public Accepted (int id)
 	{
 		this.id = id;
@@ -6,6 +6,8 @@ package sim.messages;
 
 public class Block extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final int index; // Index of this block from 0-31
 	
 	public Block (int id, int index)
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class ChkDataFound extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public ChkDataFound (int id)
 	{
 		this.id = id;
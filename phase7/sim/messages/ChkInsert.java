@@ -5,6 +5,8 @@ import sim.clients.Client;
 
 public class ChkInsert extends Search
 {
+	private final static long serialVersionUID = 1L;
+	
 	// Start a new insert
 	public ChkInsert (int key, double location, Client client)
 	{
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class ChkRequest extends Search
 {
+	private final static long serialVersionUID = 1L;
+	
 	// Start a new request
 	public ChkRequest (int key, double location)
 	{
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class DataInsert extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public DataInsert (int id)
 	{
 		this.id = id;
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class DataNotFound extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public DataNotFound (int id)
 	{
 		this.id = id;
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class InsertReply extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public InsertReply (int id)
 	{
 		this.id = id;
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class RejectedLoop extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public RejectedLoop (int id)
 	{
 		this.id = id;
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class RejectedOverload extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public boolean local; // Was this rejection generated locally?
 	
 	public RejectedOverload (int id, boolean local)
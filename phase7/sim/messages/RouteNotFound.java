@@ -4,6 +4,8 @@ package sim.messages;
 
 public class RouteNotFound extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public int htl; // Hops to live for backtracking
 	
 	public RouteNotFound (int id, int htl)
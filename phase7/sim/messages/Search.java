@@ -1,10 +1,13 @@
 // This software has been placed in the public domain by its author
 
 package sim.messages;
+import sim.Simulation;
 import sim.clients.Client;
 
 public class Search extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final static int MAX_HTL = 10; // Maximum amount of backtracking
 	
 	public final int key; // The target of the search
@@ -15,7 +18,7 @@ public class Search extends Message
 	// Start a new search
 	public Search (int key, double location, Client client)
 	{
-		id = Message.nextId++;
+		id = Simulation.current().nextSearchId();
 		this.key = key;
 		closest = location;
 		htl = MAX_HTL;
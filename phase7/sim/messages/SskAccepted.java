@@ -4,6 +4,8 @@ package sim.messages;
 
 public class SskAccepted extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final boolean needPubKey;
 	
 	public SskAccepted (int id, boolean needPubKey)
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class SskDataFound extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final int data;
 	
 	public SskDataFound (int id, int data)
@@ -5,6 +5,8 @@ import sim.clients.Client;
 
 public class SskInsert extends Search
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final int data;
 	
 	// Start a new insert
@@ -4,6 +4,8 @@ package sim.messages;
 
 public class SskPubKey extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final int key;
 	
 	public SskPubKey (int id, int key)
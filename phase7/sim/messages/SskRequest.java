@@ -4,6 +4,8 @@ package sim.messages;
 
 public class SskRequest extends Search
 {
+	private final static long serialVersionUID = 1L;
+	
 	public final boolean needPubKey;
 	
 	// Start a new request
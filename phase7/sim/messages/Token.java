@@ -4,11 +4,27 @@ package sim.messages;
 
 public class Token extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
+	// Messages aren't changed once they're sent, so tokens for small
+	// numbers are shared
+	private final static Token[] shared = new Token[64];
+	static {
+		for (int i = 0; i < shared.length; i++) shared[i] = new Token (i);
+	}
+	
 	public Token (int tokens)
 	{
 		id = tokens; // Space-saving hack
 	}
 	
+	// Return a shared message if possible, otherwise a new one
+	public static Token get (int tokens)
+	{
+		if (tokens >= 0 && tokens < shared.length) return shared[tokens];
+		return new Token (tokens);
+	}
+	
 	public String toString()
 	{
 		return new String (id + " tokens");
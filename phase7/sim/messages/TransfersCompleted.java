@@ -4,6 +4,8 @@ package sim.messages;
 
 public class TransfersCompleted extends Message
 {
+	private final static long serialVersionUID = 1L;
+	
 	public TransfersCompleted (int id)
 	{
 		this.id = id;